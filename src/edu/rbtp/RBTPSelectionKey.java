@@ -0,0 +1,169 @@
+package edu.rbtp;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The registration of an RBTPSocket or RBTPServerSocket with an RBTPSelector, modelled on NIO's SelectionKey.
+ *
+ * @author Roi Atalla
+ */
+public class RBTPSelectionKey {
+	public static final int OP_READ = 1 << 0;
+	public static final int OP_WRITE = 1 << 2;
+	public static final int OP_CONNECT = 1 << 3;
+	public static final int OP_ACCEPT = 1 << 4;
+	
+	private final RBTPSelector selector;
+	private final RBTPSocket socket;
+	private final RBTPServerSocket serverSocket;
+	
+	private volatile int interestOps;
+	private volatile int readyOps;
+	private volatile Object attachment;
+	private volatile boolean valid = true;
+	
+	// Set while the key is queued for the selector to check, so that it is queued at most once
+	final AtomicBoolean queued = new AtomicBoolean();
+	
+	RBTPSelectionKey(RBTPSelector selector, RBTPSocket socket, RBTPServerSocket serverSocket, int interestOps, Object attachment) {
+		this.selector = selector;
+		this.socket = socket;
+		this.serverSocket = serverSocket;
+		this.interestOps = interestOps;
+		this.attachment = attachment;
+	}
+	
+	public RBTPSelector selector() {
+		return selector;
+	}
+	
+	/**
+	 * @return the registered socket, or null if this key is for a server socket
+	 */
+	public RBTPSocket socket() {
+		return socket;
+	}
+	
+	/**
+	 * @return the registered server socket, or null if this key is for a socket
+	 */
+	public RBTPServerSocket serverSocket() {
+		return serverSocket;
+	}
+	
+	public int interestOps() {
+		return interestOps;
+	}
+	
+	/**
+	 * Sets the operations the selector checks for readiness. Takes effect on the next selection.
+	 *
+	 * @param interestOps the new interest set
+	 * @return this key
+	 */
+	public RBTPSelectionKey interestOps(int interestOps) {
+		checkValid();
+		checkOps(socket, interestOps);
+		
+		this.interestOps = interestOps;
+		selector.markDirty(this);
+		return this;
+	}
+	
+	/**
+	 * @return the operations found ready by the last selection that selected this key
+	 */
+	public int readyOps() {
+		return readyOps;
+	}
+	
+	void readyOps(int readyOps) {
+		this.readyOps = readyOps;
+	}
+	
+	public boolean isReadable() {
+		return (readyOps & OP_READ) != 0;
+	}
+	
+	public boolean isWritable() {
+		return (readyOps & OP_WRITE) != 0;
+	}
+	
+	public boolean isConnectable() {
+		return (readyOps & OP_CONNECT) != 0;
+	}
+	
+	public boolean isAcceptable() {
+		return (readyOps & OP_ACCEPT) != 0;
+	}
+	
+	public Object attachment() {
+		return attachment;
+	}
+	
+	/**
+	 * @param attachment the new attachment
+	 * @return the previous attachment
+	 */
+	public Object attach(Object attachment) {
+		Object previous = this.attachment;
+		this.attachment = attachment;
+		return previous;
+	}
+	
+	public boolean isValid() {
+		return valid;
+	}
+	
+	/**
+	 * Removes the registration. The socket stops notifying the selector right away.
+	 */
+	public void cancel() {
+		if(valid) {
+			valid = false;
+			selector.deregister(this);
+		}
+	}
+	
+	private void checkValid() {
+		if(!valid) {
+			throw new IllegalStateException("Key cancelled.");
+		}
+	}
+	
+	static void checkOps(RBTPSocket socket, int ops) {
+		int validOps = socket != null ? OP_READ | OP_WRITE | OP_CONNECT : OP_ACCEPT;
+		if((ops & ~validOps) != 0) {
+			throw new IllegalArgumentException("Invalid operations: " + ops);
+		}
+	}
+	
+	/**
+	 * Checks the socket's current readiness for the operations of interest.
+	 */
+	int computeReadyOps() {
+		int interestOps = this.interestOps;
+		int ready = 0;
+		
+		if(socket != null) {
+			if((interestOps & OP_CONNECT) != 0 && socket.isConnectionPending() &&
+					   socket.getConnection().getHandshakeFuture().isDone()) {
+				ready |= OP_CONNECT;
+			}
+			
+			if(socket.getConnection() != null && !socket.isConnectionPending()) {
+				if((interestOps & OP_READ) != 0 && socket.getConnection().isReadable()) {
+					ready |= OP_READ;
+				}
+				
+				if((interestOps & OP_WRITE) != 0 && socket.getConnection().isWritable()) {
+					ready |= OP_WRITE;
+				}
+			}
+		} else if((interestOps & OP_ACCEPT) != 0 && serverSocket.isAcceptable()) {
+			ready |= OP_ACCEPT;
+		}
+		
+		return ready;
+	}
+}
@@ -0,0 +1,260 @@
+package edu.rbtp;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lets a single thread serve many RBTPSockets and RBTPServerSockets, modelled on NIO's Selector.
+ *
+ * Sockets are never polled: their connection threads notify the selector whenever a socket may have become ready, and
+ * only those sockets are checked during selection. Like NIO, readiness is level-triggered: a socket that stays ready,
+ * for example because not all its data was read, is selected again by the next selection.
+ *
+ * A socket can only be registered with one selector at a time.
+ *
+ * @author Roi Atalla
+ */
+public class RBTPSelector implements Closeable {
+	private final Set<RBTPSelectionKey> keys = ConcurrentHashMap.newKeySet();
+	private final Set<RBTPSelectionKey> publicKeys = Collections.unmodifiableSet(keys);
+	private final Set<RBTPSelectionKey> selectedKeys = new HashSet<>();
+	
+	// Keys notified since the last selection, filled by the connection threads
+	private final ConcurrentLinkedQueue<RBTPSelectionKey> dirtyKeys = new ConcurrentLinkedQueue<>();
+	// Keys that were ready during the last selection, only touched by the selecting thread
+	private final HashSet<RBTPSelectionKey> readyKeys = new HashSet<>();
+	
+	private volatile Thread selectingThread;
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private volatile boolean closed;
+	
+	public RBTPSelector() {
+	}
+	
+	/**
+	 * Registers the socket, which must be in non-blocking mode.
+	 *
+	 * @param socket      the socket to register
+	 * @param interestOps any of OP_READ, OP_WRITE and OP_CONNECT
+	 * @param attachment  an object to attach to the key, may be null
+	 * @return the new key
+	 */
+	public RBTPSelectionKey register(RBTPSocket socket, int interestOps, Object attachment) {
+		if(socket.isBlocking()) {
+			throw new IllegalArgumentException("Socket must be in non-blocking mode.");
+		}
+		
+		RBTPSelectionKey.checkOps(socket, interestOps);
+		
+		RBTPSelectionKey key = newKey(socket, null, interestOps, attachment);
+		socket.setReadinessListener(() -> markDirty(key));
+		markDirty(key);
+		return key;
+	}
+	
+	/**
+	 * Registers the server socket, which must be in non-blocking mode.
+	 *
+	 * @param serverSocket the server socket to register
+	 * @param interestOps  OP_ACCEPT
+	 * @param attachment   an object to attach to the key, may be null
+	 * @return the new key
+	 */
+	public RBTPSelectionKey register(RBTPServerSocket serverSocket, int interestOps, Object attachment) {
+		if(serverSocket.isBlocking()) {
+			throw new IllegalArgumentException("Server socket must be in non-blocking mode.");
+		}
+		
+		RBTPSelectionKey.checkOps(null, interestOps);
+		
+		RBTPSelectionKey key = newKey(null, serverSocket, interestOps, attachment);
+		serverSocket.setReadinessListener(() -> markDirty(key));
+		markDirty(key);
+		return key;
+	}
+	
+	private RBTPSelectionKey newKey(RBTPSocket socket, RBTPServerSocket serverSocket, int interestOps, Object attachment) {
+		if(closed) {
+			throw new IllegalStateException("Selector is closed.");
+		}
+		
+		RBTPSelectionKey key = new RBTPSelectionKey(this, socket, serverSocket, interestOps, attachment);
+		keys.add(key);
+		return key;
+	}
+	
+	void deregister(RBTPSelectionKey key) {
+		keys.remove(key);
+		
+		if(key.socket() != null) {
+			key.socket().setReadinessListener(null);
+		} else {
+			key.serverSocket().setReadinessListener(null);
+		}
+		
+		markDirty(key); // so the selecting thread drops it
+	}
+	
+	/**
+	 * Called by the connection threads: queues the key to be checked and wakes up the selecting thread.
+	 */
+	void markDirty(RBTPSelectionKey key) {
+		if(key.queued.compareAndSet(false, true)) {
+			dirtyKeys.offer(key);
+			
+			Thread selectingThread = this.selectingThread;
+			if(selectingThread != null) {
+				LockSupport.unpark(selectingThread);
+			}
+		}
+	}
+	
+	/**
+	 * @return all registered keys, this set cannot be modified
+	 */
+	public Set<RBTPSelectionKey> keys() {
+		return publicKeys;
+	}
+	
+	/**
+	 * @return the keys selected so far, remove keys from this set once they are handled
+	 */
+	public Set<RBTPSelectionKey> selectedKeys() {
+		return selectedKeys;
+	}
+	
+	/**
+	 * Blocks until at least one key is selected, wakeup is called or the selector is closed.
+	 *
+	 * @return the number of keys newly selected or whose ready operations were updated
+	 */
+	public int select() {
+		return select(0);
+	}
+	
+	/**
+	 * Blocks until at least one key is selected, wakeup is called, the selector is closed or the timeout expires.
+	 *
+	 * @param timeout the timeout in milliseconds, 0 to wait indefinitely
+	 * @return the number of keys newly selected or whose ready operations were updated
+	 */
+	public int select(long timeout) {
+		if(timeout < 0) {
+			throw new IllegalArgumentException("Negative timeout.");
+		}
+		
+		long deadline = timeout == 0 ? Long.MAX_VALUE : System.nanoTime() + timeout * 1000000;
+		
+		selectingThread = Thread.currentThread();
+		try {
+			while(true) {
+				int count = doSelect();
+				if(count > 0 || closed || wakeupPending.getAndSet(false)) {
+					return count;
+				}
+				
+				if(timeout == 0) {
+					LockSupport.park(this);
+				} else {
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0) {
+						return 0;
+					}
+					
+					LockSupport.parkNanos(this, remaining);
+				}
+			}
+		}
+		finally {
+			selectingThread = null;
+		}
+	}
+	
+	/**
+	 * Selects the ready keys without blocking.
+	 *
+	 * @return the number of keys newly selected or whose ready operations were updated
+	 */
+	public int selectNow() {
+		wakeupPending.set(false);
+		return doSelect();
+	}
+	
+	private int doSelect() {
+		if(closed) {
+			return 0;
+		}
+		
+		RBTPSelectionKey key;
+		while((key = dirtyKeys.poll()) != null) {
+			key.queued.set(false);
+			readyKeys.add(key);
+		}
+		
+		int count = 0;
+		
+		for(Iterator<RBTPSelectionKey> iterator = readyKeys.iterator(); iterator.hasNext(); ) {
+			key = iterator.next();
+			
+			if(!key.isValid()) {
+				selectedKeys.remove(key);
+				iterator.remove();
+				continue;
+			}
+			
+			int ready = key.computeReadyOps();
+			if(ready == 0) {
+				// not checked again until its socket notifies us
+				iterator.remove();
+				continue;
+			}
+			
+			if(selectedKeys.add(key)) {
+				key.readyOps(ready);
+				count++;
+			} else if((key.readyOps() | ready) != key.readyOps()) {
+				key.readyOps(key.readyOps() | ready);
+				count++;
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Makes the current or next select return right away.
+	 */
+	public void wakeup() {
+		wakeupPending.set(true);
+		
+		Thread selectingThread = this.selectingThread;
+		if(selectingThread != null) {
+			LockSupport.unpark(selectingThread);
+		}
+	}
+	
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Cancels all keys and wakes up the selecting thread. The registered sockets are left open.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		
+		for(RBTPSelectionKey key : keys) {
+			key.cancel();
+		}
+		
+		wakeup();
+	}
+}
@@ -1,11 +1,15 @@
 package edu.rbtp;
 
 import java.io.IOException;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import edu.rbtp.impl.NetworkManager;
 import edu.rbtp.impl.RBTPServer;
+import edu.rbtp.tools.MPMCRing;
 
 /**
  * This class starts a server that can accept connections through the RBT protocol.
@@ -15,8 +19,18 @@ import edu.rbtp.impl.RBTPServer;
 public class RBTPServerSocket {
 	private int port;
 	private RBTPServer serverHandler;
-	private LinkedBlockingQueue<RBTPSocket> connectionsToAccept;
+	private MPMCRing<RBTPSocket> connectionsToAccept;
 	private boolean blocking;
+	private boolean messageMode;
+	private int minChallengeDifficulty = RBTPServer.DEFAULT_MIN_CHALLENGE_DIFFICULTY;
+	private int maxChallengeDifficulty = RBTPServer.DEFAULT_MAX_CHALLENGE_DIFFICULTY;
+	private long ticketLifetime = RBTPServer.DEFAULT_TICKET_LIFETIME;
+	private volatile Runnable readinessListener;
+	private final ConcurrentLinkedQueue<CompletableFuture<RBTPSocket>> pendingAccepts = new ConcurrentLinkedQueue<>();
+	
+	// Threads blocked in accept() park on this until a connection is queued or the server is closed
+	private final ReentrantLock acceptLock = new ReentrantLock();
+	private final Condition acceptable = acceptLock.newCondition();
 	
 	/**
 	 * Initializes this server with blocking mode set to true.
@@ -56,6 +70,71 @@ public class RBTPServerSocket {
 		return port;
 	}
 	
+	public boolean isMessageMode() {
+		return messageMode;
+	}
+	
+	/**
+	 * Sets whether clients that request message mode, see RBTPSocket.setMessageMode, get it. Accepted sockets report
+	 * the outcome with isMessageMode. Off by default.
+	 *
+	 * @param messageMode true to accept message mode
+	 */
+	public void setMessageMode(boolean messageMode) {
+		if(serverHandler != null) {
+			serverHandler.setMessageMode(messageMode);
+		}
+		
+		this.messageMode = messageMode;
+	}
+	
+	public int getMinChallengeDifficulty() {
+		return minChallengeDifficulty;
+	}
+	
+	public int getMaxChallengeDifficulty() {
+		return maxChallengeDifficulty;
+	}
+	
+	/**
+	 * Sets the range of the difficulty of the challenge clients must solve to connect, in leading zero bits of a
+	 * SHA-1. Clients get the minimum while the server is idle, and up to the maximum as pending handshakes, connections
+	 * waiting to be accepted and CPU load rise. Defaults to 0 to 20.
+	 *
+	 * @param min the difficulty while idle
+	 * @param max the difficulty at full load, at most 28
+	 */
+	public void setChallengeDifficulty(int min, int max) {
+		if(serverHandler != null) {
+			serverHandler.setChallengeDifficulty(min, max);
+		} else if(min < 0 || max < min || max > RBTPServer.MAX_CHALLENGE_DIFFICULTY) {
+			throw new IllegalArgumentException("Invalid challenge difficulty range: " + min + " to " + max);
+		}
+		
+		this.minChallengeDifficulty = min;
+		this.maxChallengeDifficulty = max;
+	}
+	
+	public long getTicketLifetime() {
+		return ticketLifetime;
+	}
+	
+	/**
+	 * Sets how long the resumption tickets given to clients are valid for. A client reconnecting with its ticket skips
+	 * the challenge and is connected in a single round trip. Each ticket can only be used once. Defaults to a day.
+	 *
+	 * @param ticketLifetime the lifetime in milliseconds, 0 to turn resumption off
+	 */
+	public void setTicketLifetime(long ticketLifetime) {
+		if(serverHandler != null) {
+			serverHandler.setTicketLifetime(ticketLifetime);
+		} else if(ticketLifetime < 0) {
+			throw new IllegalArgumentException("Negative ticket lifetime.");
+		}
+		
+		this.ticketLifetime = ticketLifetime;
+	}
+	
 	/**
 	 * Binds this server to the specified port.
 	 *
@@ -65,6 +144,9 @@ public class RBTPServerSocket {
 	public void bind(int port) throws IOException {
 		this.port = port;
 		serverHandler = new RBTPServer();
+		serverHandler.setMessageMode(messageMode);
+		serverHandler.setChallengeDifficulty(minChallengeDifficulty, maxChallengeDifficulty);
+		serverHandler.setTicketLifetime(ticketLifetime);
 		NetworkManager.getInstance().bindSocket((short)port, serverHandler);
 	}
 	
@@ -73,12 +155,63 @@ public class RBTPServerSocket {
 	 * The server starts listening for SYN packets.
 	 */
 	public void listen() {
+		listen(RBTPServer.DEFAULT_BACKLOG);
+	}
+	
+	/**
+	 * Must be called before calling accept()
+	 * The server starts listening for SYN packets.
+	 *
+	 * @param backlog the maximum number of handshakes in progress, and of established connections waiting to be accepted
+	 */
+	public void listen(int backlog) {
 		if(serverHandler == null) {
 			throw new IllegalStateException("SocketServer not bound.");
 		}
 		
-		connectionsToAccept = new LinkedBlockingQueue<>();
-		serverHandler.setAcceptHandler((connection) -> connectionsToAccept.offer(new RBTPSocket(blocking, connection)));
+		serverHandler.setBacklog(backlog);
+		connectionsToAccept = new MPMCRing<>(backlog);
+		serverHandler.setAcceptQueueSize(connectionsToAccept::size);
+		serverHandler.setAcceptHandler((connection) -> {
+			// Like a full TCP backlog, connections that don't fit are dropped
+			if(!connectionsToAccept.offer(new RBTPSocket(blocking, connection))) {
+				connection.close();
+				return;
+			}
+			
+			signalAcceptable();
+		});
+	}
+	
+	private void signalAcceptable() {
+		acceptLock.lock();
+		try {
+			acceptable.signalAll();
+		}
+		finally {
+			acceptLock.unlock();
+		}
+		
+		completePendingAccepts();
+		
+		Runnable readinessListener = this.readinessListener;
+		if(readinessListener != null) {
+			readinessListener.run();
+		}
+	}
+	
+	/**
+	 * For internal use by the RBTPSelector: listens for new connections to accept.
+	 */
+	void setReadinessListener(Runnable readinessListener) {
+		this.readinessListener = readinessListener;
+	}
+	
+	/**
+	 * @return true if accept would return a connection without blocking, or the server is closed
+	 */
+	public boolean isAcceptable() {
+		return (connectionsToAccept != null && !connectionsToAccept.isEmpty()) || (serverHandler != null && isClosed());
 	}
 	
 	/**
@@ -92,17 +225,21 @@ public class RBTPServerSocket {
 		}
 		
 		if(blocking) {
-			RBTPSocket socket = null;
-			do {
+			RBTPSocket socket;
+			while((socket = connectionsToAccept.poll()) == null) {
+				if(isClosed()) {
+					throw new IOException("Server is closed.");
+				}
+				
+				acceptLock.lock();
 				try {
-					socket = connectionsToAccept.poll(10, TimeUnit.MILLISECONDS);
+					while(connectionsToAccept.isEmpty() && !isClosed()) {
+						acceptable.awaitUninterruptibly();
+					}
 				}
-				catch(Exception exc) {
+				finally {
+					acceptLock.unlock();
 				}
-			} while(socket == null && !isClosed());
-			
-			if(isClosed()) {
-				throw new IOException("Server is closed.");
 			}
 			
 			return socket;
@@ -111,11 +248,79 @@ public class RBTPServerSocket {
 		}
 	}
 	
+	/**
+	 * Accepts a connection without blocking, regardless of the blocking mode. Any number of accepts may be outstanding,
+	 * they are completed in order.
+	 *
+	 * The returned future is completed by the new connection's own thread. Dependent actions that may take a while or
+	 * block must run on an executor, with the *Async methods of CompletableFuture.
+	 *
+	 * @return a future completed with the RBTPSocket of the next new connection, or exceptionally with an IOException
+	 * if the server is closed
+	 */
+	public CompletableFuture<RBTPSocket> acceptAsync() {
+		if(connectionsToAccept == null) {
+			throw new IllegalStateException("SocketServer not listening.");
+		}
+		
+		CompletableFuture<RBTPSocket> future = new CompletableFuture<>();
+		pendingAccepts.offer(future);
+		completePendingAccepts();
+		return future;
+	}
+	
+	private void completePendingAccepts() {
+		if(pendingAccepts.isEmpty()) {
+			return;
+		}
+		
+		ArrayList<CompletableFuture<RBTPSocket>> accepted = new ArrayList<>();
+		ArrayList<RBTPSocket> sockets = new ArrayList<>();
+		ArrayList<CompletableFuture<RBTPSocket>> failed = new ArrayList<>();
+		
+		// Pairs futures with connections, the futures are completed outside of the lock
+		synchronized(pendingAccepts) {
+			CompletableFuture<RBTPSocket> future;
+			while((future = pendingAccepts.peek()) != null) {
+				if(future.isDone()) { // cancelled
+					pendingAccepts.poll();
+					continue;
+				}
+				
+				if(isClosed()) {
+					failed.addAll(pendingAccepts);
+					pendingAccepts.clear();
+					break;
+				}
+				
+				RBTPSocket socket = connectionsToAccept.poll();
+				if(socket == null) {
+					break;
+				}
+				
+				accepted.add(pendingAccepts.poll());
+				sockets.add(socket);
+			}
+		}
+		
+		for(int i = 0; i < accepted.size(); i++) {
+			// If the future was cancelled in the meantime, the connection goes back in the queue
+			if(!accepted.get(i).complete(sockets.get(i)) && !connectionsToAccept.offer(sockets.get(i))) {
+				sockets.get(i).close();
+			}
+		}
+		
+		for(CompletableFuture<RBTPSocket> future : failed) {
+			future.completeExceptionally(new IOException("Server is closed."));
+		}
+	}
+	
 	public boolean isClosed() {
 		return serverHandler.isClosed();
 	}
 	
 	public void close() {
 		serverHandler.close();
+		signalAcceptable();
 	}
 }
@@ -2,18 +2,43 @@ package edu.rbtp;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.ScatteringByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import edu.rbtp.impl.NetworkManager;
 import edu.rbtp.impl.RBTPConnection;
+import edu.rbtp.impl.RBTPStream;
 
 /**
  * This is the interface by which to communicate with a remote through the RBT protocol.
  * 
+ * It is a scattering and gathering ByteChannel, so it can be used with NIO utilities such as Channels.newInputStream
+ * and FileChannel.transferFrom. Reads return -1 once the remote end has closed and all its data was read.
+ * 
  * @author Roi Atalla
  */
-public class RBTPSocket {
+public class RBTPSocket implements ByteChannel, ScatteringByteChannel, GatheringByteChannel {
 	private boolean blocking;
 	private RBTPConnection connection;
+	private volatile boolean closed;
+	private int readLowWaterMark = RBTPConnection.DEFAULT_READ_LOW_WATER_MARK;
+	private int writeLowWaterMark = RBTPConnection.DEFAULT_WRITE_LOW_WATER_MARK;
+	private boolean messageMode;
+	private long messageLifetime;
+	private int sendWeight = RBTPConnection.DEFAULT_SEND_WEIGHT;
+	private volatile boolean connectionPending;
+	private volatile Runnable readinessListener;
+	
+	// The outstanding readAsync and writeAsync, at most one of each
+	private final AtomicReference<PendingIO> pendingRead = new AtomicReference<>();
+	private final AtomicReference<PendingIO> pendingWrite = new AtomicReference<>();
 	
 	/**
 	 * Initializes the socket with blocking mode set to true.
@@ -36,6 +61,10 @@ public class RBTPSocket {
 	RBTPSocket(boolean blocking, RBTPConnection connection) {
 		this.blocking = blocking;
 		this.connection = connection;
+		
+		if(connection != null) {
+			connection.setReadinessListener(this::onReadiness);
+		}
 	}
 	
 	public void setBlocking(boolean blocking) {
@@ -46,55 +75,565 @@ public class RBTPSocket {
 		return blocking;
 	}
 	
+	public int getReadLowWaterMark() {
+		return connection != null ? connection.getReadLowWaterMark() : readLowWaterMark;
+	}
+	
+	/**
+	 * In blocking mode, read waits until at least this many bytes can be read, or as many as fit in the buffer.
+	 *
+	 * @param readLowWaterMark the minimum number of bytes a blocking read waits for
+	 */
+	public void setReadLowWaterMark(int readLowWaterMark) {
+		if(connection != null) {
+			connection.setReadLowWaterMark(readLowWaterMark);
+		}
+		
+		this.readLowWaterMark = readLowWaterMark;
+	}
+	
+	public int getWriteLowWaterMark() {
+		return connection != null ? connection.getWriteLowWaterMark() : writeLowWaterMark;
+	}
+	
+	/**
+	 * In blocking mode, write waits until at least this much space is free in the write buffer before copying more data.
+	 *
+	 * @param writeLowWaterMark the minimum free space a blocking write waits for
+	 */
+	public void setWriteLowWaterMark(int writeLowWaterMark) {
+		if(connection != null) {
+			connection.setWriteLowWaterMark(writeLowWaterMark);
+		}
+		
+		this.writeLowWaterMark = writeLowWaterMark;
+	}
+	
+	public boolean isMessageMode() {
+		return connection != null ? connection.isMessageMode() : messageMode;
+	}
+	
+	/**
+	 * Requests message mode, must be called before connecting. In message mode, each write is delivered as exactly
+	 * one message by a single read on the other end. The server must allow message mode, otherwise the connection
+	 * falls back to a stream: check isMessageMode once connected.
+	 *
+	 * @param messageMode true to request message mode
+	 */
+	public void setMessageMode(boolean messageMode) {
+		if(connection != null) {
+			throw new IllegalStateException("Already connected.");
+		}
+		
+		this.messageMode = messageMode;
+	}
+	
+	public long getMessageLifetime() {
+		return connection != null ? connection.getMessageLifetime() : messageLifetime;
+	}
+	
+	/**
+	 * Sets the default lifetime of the messages written in message mode. A message that is not delivered within its
+	 * lifetime is abandoned instead of retransmitted, and the other end skips it.
+	 *
+	 * @param lifetime the lifetime in milliseconds, 0 for fully reliable delivery
+	 */
+	public void setMessageLifetime(long lifetime) {
+		if(lifetime < 0) {
+			throw new IllegalArgumentException("Negative lifetime.");
+		}
+		
+		if(connection != null) {
+			connection.setMessageLifetime(lifetime);
+		}
+		
+		this.messageLifetime = lifetime;
+	}
+	
+	public int getSendWeight() {
+		return connection != null ? connection.getSendWeight() : sendWeight;
+	}
+	
+	/**
+	 * Sets this socket's share of the outgoing traffic relative to the other sockets of this process: while several
+	 * sockets have data to send, each gets to send in proportion to its weight. Give interactive sockets a higher
+	 * weight than bulk transfers to keep their latency low.
+	 *
+	 * @param weight the weight, from RBTPConnection.MIN_SEND_WEIGHT to MAX_SEND_WEIGHT, DEFAULT_SEND_WEIGHT by default
+	 */
+	public void setSendWeight(int weight) {
+		if(weight < RBTPConnection.MIN_SEND_WEIGHT || weight > RBTPConnection.MAX_SEND_WEIGHT) {
+			throw new IllegalArgumentException("Send weight must be between " + RBTPConnection.MIN_SEND_WEIGHT + " and " + RBTPConnection.MAX_SEND_WEIGHT + ".");
+		}
+		
+		if(connection != null) {
+			connection.setSendWeight(weight);
+		}
+		
+		this.sendWeight = weight;
+	}
+	
 	/**
-	 * Connects to the socket to the remote RBTP server. Does not return until a connection is successfully made.
+	 * In message mode, reports the size of the next message, so that a large enough buffer can be passed to read.
+	 *
+	 * @return the size of the next message if it has fully arrived, else 0, or -1 if the remote end closed the
+	 * connection and all messages were read
+	 */
+	public int getNextMessageSize() {
+		return connection.getNextMessageSize();
+	}
+	
+	/**
+	 * Connects to the socket to the remote RBTP server. In blocking mode, does not return until a connection is
+	 * successfully made. In non-blocking mode, only starts the handshake: finishConnect must then be called, for
+	 * example once an RBTPSelector reports the socket as connectable.
 	 *
 	 * @param address the remote address
 	 * @throws IOException
 	 */
 	public void connect(RBTPSocketAddress address) throws IOException {
+		connect(address, null);
+	}
+	
+	/**
+	 * Connects like connect(address), and sends up to a packet of initial data along with the handshake. The server
+	 * can read it as soon as the connection is accepted, a round trip earlier than data written after connecting.
+	 * The buffer's position is advanced past the data that was taken. In message mode, the remaining bytes are sent
+	 * as one message, which must fit in a packet.
+	 *
+	 * @param address     the remote address
+	 * @param initialData the data to send with the handshake
+	 * @throws IOException
+	 */
+	public void connect(RBTPSocketAddress address, ByteBuffer initialData) throws IOException {
+		RBTPConnection connection = newConnection();
+		
+		if(blocking) {
+			connection.connect(address, initialData);
+		} else {
+			connectionPending = true;
+			connection.startConnect(address, initialData);
+		}
+	}
+	
+	/**
+	 * Connects to the remote RBTP server without blocking, regardless of the blocking mode.
+	 *
+	 * The returned future, like those of acceptAsync, readAsync and writeAsync, is completed by the connection's own
+	 * thread. Dependent actions that may take a while or block must run on an executor, with the *Async methods of
+	 * CompletableFuture.
+	 *
+	 * @param address the remote address
+	 * @return a future completed with this socket once connected, or exceptionally with an IOException
+	 * @throws IOException
+	 */
+	public CompletableFuture<RBTPSocket> connectAsync(RBTPSocketAddress address) throws IOException {
+		return connectAsync(address, null);
+	}
+	
+	/**
+	 * Connects like connectAsync(address), and sends initial data along with the handshake, see
+	 * connect(RBTPSocketAddress, ByteBuffer).
+	 *
+	 * @param address     the remote address
+	 * @param initialData the data to send with the handshake
+	 * @return a future completed with this socket once connected, or exceptionally with an IOException
+	 * @throws IOException
+	 */
+	public CompletableFuture<RBTPSocket> connectAsync(RBTPSocketAddress address, ByteBuffer initialData) throws IOException {
+		RBTPConnection connection = newConnection();
+		
+		return connection.startConnect(address, initialData).handle((c, exc) -> {
+			if(exc != null) {
+				connection.close();
+				throw new CompletionException(new IOException("Connect failed.", exc));
+			}
+			
+			return this;
+		});
+	}
+	
+	private RBTPConnection newConnection() throws IOException {
 		if(connection != null) {
 			throw new IllegalStateException("Already connected.");
 		}
 		
-		connection = new RBTPConnection();
+		RBTPConnection connection = new RBTPConnection();
+		connection.setReadLowWaterMark(readLowWaterMark);
+		connection.setWriteLowWaterMark(writeLowWaterMark);
+		connection.setMessageMode(messageMode);
+		connection.setMessageLifetime(messageLifetime);
+		connection.setSendWeight(sendWeight);
+		connection.setReadinessListener(this::onReadiness);
 		NetworkManager.getInstance().bindSocketToAnyPort(connection);
 		
-		connection.connect(address);
+		this.connection = connection;
+		return connection;
+	}
+	
+	/**
+	 * Finishes a connection started in non-blocking mode. In blocking mode, waits for the handshake to finish.
+	 *
+	 * @return true if the connection is established, false if the handshake is still in progress
+	 * @throws IOException if the connection failed
+	 */
+	public boolean finishConnect() throws IOException {
+		if(!connectionPending) {
+			if(isConnected()) {
+				return true;
+			}
+			
+			throw new IllegalStateException("No connection pending.");
+		}
+		
+		if(!blocking && !connection.getHandshakeFuture().isDone()) {
+			return false;
+		}
+		
+		connectionPending = false;
+		
+		try {
+			connection.getHandshakeFuture().join();
+			return true;
+		}
+		catch(CompletionException exc) {
+			connection.close();
+			throw new IOException("Connect failed.", exc.getCause());
+		}
+	}
+	
+	public boolean isConnectionPending() {
+		return connectionPending;
 	}
 	
 	public boolean isConnected() {
-		return connection != null && connection.isClosed();
+		return connection != null && connection.isConnected();
+	}
+	
+	/**
+	 * For internal use by the RBTPSelector: listens for changes in readiness of the connection.
+	 */
+	void setReadinessListener(Runnable readinessListener) {
+		this.readinessListener = readinessListener;
+	}
+	
+	/**
+	 * Called by the connection threads whenever the connection may have become readable, writable or connected.
+	 */
+	private void onReadiness() {
+		processPendingRead();
+		processPendingWrite();
+		
+		Runnable readinessListener = this.readinessListener;
+		if(readinessListener != null) {
+			readinessListener.run();
+		}
 	}
 	
 	/**
 	 * Read into the buffer as much data as possible, returning the number of bytes read.
+	 * In blocking mode, waits until at least the read low-water mark of data is available.
+	 * In message mode, reads one whole message, see RBTPConnection.read.
 	 *
 	 * @param buffer The ByteBuffer into which to read data
-	 * @return the number of bytes read
+	 * @return the number of bytes read, or -1 if the remote end closed the connection
 	 * @throws IOException
 	 */
+	@Override
 	public int read(ByteBuffer buffer) throws IOException {
+		checkOpen();
 		return connection.read(buffer, blocking);
 	}
 	
+	/**
+	 * Read into the buffers in order as much data as possible, returning the number of bytes read.
+	 * In blocking mode, waits until at least the read low-water mark of data is available.
+	 *
+	 * @param dsts   The ByteBuffers into which to read data
+	 * @param offset The index of the first buffer to read into
+	 * @param length The number of buffers to read into
+	 * @return the number of bytes read, or -1 if the remote end closed the connection
+	 * @throws IOException
+	 */
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		checkBounds(dsts.length, offset, length);
+		checkOpen();
+		return connection.read(dsts, offset, length, blocking);
+	}
+	
+	@Override
+	public long read(ByteBuffer[] dsts) throws IOException {
+		return read(dsts, 0, dsts.length);
+	}
+	
 	/**
 	 * Writes from the buffer as much data as possible, returning the number of bytes written.
+	 * In blocking mode, does not return until the entire buffer has been written.
 	 *
 	 * @param buffer The ByteBuffer from which to write data
 	 * @return the number of bytes written
 	 * @throws IOException
 	 */
+	@Override
 	public int write(ByteBuffer buffer) throws IOException {
-		return connection.write(buffer);
+		checkOpen();
+		return connection.write(buffer, blocking);
+	}
+	
+	/**
+	 * Writes from the buffers in order as much data as possible, returning the number of bytes written. The buffers
+	 * are queued as one contiguous stream, so a header and a body sent this way go out in the same packets.
+	 * In blocking mode, does not return until all the buffers have been written.
+	 *
+	 * @param srcs   The ByteBuffers from which to write data
+	 * @param offset The index of the first buffer to write from
+	 * @param length The number of buffers to write from
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		checkBounds(srcs.length, offset, length);
+		checkOpen();
+		return connection.write(srcs, offset, length, blocking);
+	}
+	
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+	
+	/**
+	 * Writes the buffer as one message with its own lifetime, see setMessageLifetime. Requires message mode.
+	 *
+	 * @param buffer   The ByteBuffer from which to write data
+	 * @param lifetime The lifetime of the message in milliseconds, 0 for fully reliable delivery
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public int write(ByteBuffer buffer, long lifetime) throws IOException {
+		checkOpen();
+		return (int)connection.write(new ByteBuffer[] { buffer }, 0, 1, blocking, lifetime);
+	}
+	
+	/**
+	 * Sends part of a file without copying it into the write buffer: packets are sliced straight out of a
+	 * memory-mapping of the file. Stops early at the end of the file.
+	 * In blocking mode, does not return until the entire region has been queued.
+	 *
+	 * @param src      The FileChannel to send from, must be readable
+	 * @param position The position in the file to start from
+	 * @param count    The maximum number of bytes to send
+	 * @return the number of bytes queued
+	 * @throws IOException
+	 */
+	public long transferFrom(FileChannel src, long position, long count) throws IOException {
+		checkOpen();
+		return connection.transferFrom(src, position, count, blocking);
+	}
+	
+	/**
+	 * Writes received data straight into a file, without copying it into an intermediate buffer.
+	 * In blocking mode, waits until at least the read low-water mark of data is available.
+	 *
+	 * @param dst      The FileChannel to write to, must be writable
+	 * @param position The position in the file to start from
+	 * @param count    The maximum number of bytes to write
+	 * @return the number of bytes written, or -1 if the remote end closed the connection
+	 * @throws IOException
+	 */
+	public long transferTo(FileChannel dst, long position, long count) throws IOException {
+		checkOpen();
+		return connection.transferTo(dst, position, count, blocking);
+	}
+	
+	/**
+	 * Opens a new independent stream over this connection, see RBTPStream. The socket's own read and write use the
+	 * connection's main stream.
+	 *
+	 * @return the new stream
+	 * @throws IOException
+	 */
+	public RBTPStream openStream() throws IOException {
+		checkOpen();
+		return connection.openStream();
+	}
+	
+	/**
+	 * Returns the next stream opened by the remote. In blocking mode, waits until the remote opens one or closes the
+	 * connection.
+	 *
+	 * @return the new stream, or null if there is none
+	 * @throws IOException
+	 */
+	public RBTPStream acceptStream() throws IOException {
+		checkOpen();
+		return connection.acceptStream(blocking);
+	}
+	
+	private void checkOpen() throws ClosedChannelException {
+		if(closed) {
+			throw new ClosedChannelException();
+		}
+		
+		if(connection == null) {
+			throw new NotYetConnectedException();
+		}
+	}
+	
+	private static void checkBounds(int size, int offset, int length) {
+		if(offset < 0 || length < 0 || offset > size - length) {
+			throw new IndexOutOfBoundsException();
+		}
+	}
+	
+	/**
+	 * Reads into the buffer without blocking, regardless of the blocking mode. Only one read may be outstanding.
+	 * May be called as soon as connectAsync returns: the read starts once the handshake finishes.
+	 *
+	 * @param buffer The ByteBuffer into which to read data, must not be used until the future completes
+	 * @return a future completed with the number of bytes read, at least 1, once data has arrived, with -1 once the
+	 * remote end has closed the connection and all its data was read, or exceptionally with an IOException if the
+	 * connection is closing
+	 */
+	public CompletableFuture<Integer> readAsync(ByteBuffer buffer) {
+		CompletableFuture<Integer> future = new CompletableFuture<>();
+		startPendingIO(pendingRead, new PendingIO(buffer, future), "read");
+		processPendingRead();
+		return future;
+	}
+	
+	/**
+	 * Writes the entire buffer without blocking, regardless of the blocking mode. Only one write may be outstanding.
+	 * May be called as soon as connectAsync returns: the write starts once the handshake finishes.
+	 *
+	 * @param buffer The ByteBuffer from which to write data, must not be used until the future completes
+	 * @return a future completed with the number of bytes written once all of them are in the write buffer, or
+	 * exceptionally with an IOException if the connection is closing
+	 */
+	public CompletableFuture<Integer> writeAsync(ByteBuffer buffer) {
+		CompletableFuture<Integer> future = new CompletableFuture<>();
+		startPendingIO(pendingWrite, new PendingIO(buffer, future), "write");
+		processPendingWrite();
+		return future;
+	}
+	
+	private void startPendingIO(AtomicReference<PendingIO> pending, PendingIO io, String name) {
+		if(connection == null) {
+			throw new IllegalStateException("Not connected.");
+		}
+		
+		while(true) {
+			PendingIO current = pending.get();
+			if(current != null && !current.future.isDone()) {
+				throw new IllegalStateException("A " + name + " is already pending.");
+			}
+			
+			if(pending.compareAndSet(current, io)) {
+				return;
+			}
+		}
+	}
+	
+	private void processPendingRead() {
+		PendingIO io = pendingRead.get();
+		if(io == null || !connection.getHandshakeFuture().isDone()) {
+			return; // started by onReadiness once the handshake finishes
+		}
+		
+		// The caller and the connection thread may both get here
+		synchronized(io) {
+			if(io.done || io.future.isDone()) { // done or cancelled
+				return;
+			}
+			
+			try {
+				io.count = connection.read(io.buffer, false);
+				if(io.count == 0 && io.buffer.hasRemaining()) {
+					return;
+				}
+			}
+			catch(IOException | RuntimeException exc) {
+				io.exception = exc;
+			}
+			
+			io.done = true;
+		}
+		
+		pendingRead.compareAndSet(io, null);
+		io.complete();
+	}
+	
+	private void processPendingWrite() {
+		PendingIO io = pendingWrite.get();
+		if(io == null || !connection.getHandshakeFuture().isDone()) {
+			return; // started by onReadiness once the handshake finishes
+		}
+		
+		synchronized(io) {
+			if(io.done || io.future.isDone()) { // done or cancelled
+				return;
+			}
+			
+			try {
+				io.count += connection.write(io.buffer, false);
+				if(io.buffer.hasRemaining()) {
+					return;
+				}
+			}
+			catch(IOException | RuntimeException exc) {
+				io.exception = exc;
+			}
+			
+			io.done = true;
+		}
+		
+		pendingWrite.compareAndSet(io, null);
+		io.complete();
+	}
+	
+	private static class PendingIO {
+		final ByteBuffer buffer;
+		final CompletableFuture<Integer> future;
+		int count;
+		Exception exception;
+		boolean done;
+		
+		PendingIO(ByteBuffer buffer, CompletableFuture<Integer> future) {
+			this.buffer = buffer;
+			this.future = future;
+		}
+		
+		// Never called while holding the lock, since dependent actions run right away
+		void complete() {
+			if(exception != null) {
+				future.completeExceptionally(exception);
+			} else {
+				future.complete(count);
+			}
+		}
 	}
 	
 	public boolean isClosed() {
 		return connection.isClosed();
 	}
 	
+	/**
+	 * @return false once close has been called
+	 */
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+	
+	@Override
 	public void close() {
-		connection.close();
+		closed = true;
+		
+		if(connection != null) {
+			connection.close();
+		}
 	}
 	
 	/**
@@ -10,11 +10,31 @@ import java.util.function.Consumer;
 public interface BindingInterface {
 	short getPort();
 	
+	/**
+	 * @return the consumer that sends packets ahead of all flows without ever blocking, for the few packets sent from
+	 * the NetworkManager thread
+	 */
 	Consumer<RBTPPacket> getPacketSendConsumer();
 	
+	/**
+	 * Opens a new flow in the NetworkManager's egress scheduler, through which a connection sends its packets so that
+	 * it shares the UDP channel fairly with the other connections.
+	 *
+	 * @return the new flow
+	 */
+	EgressScheduler.Flow openFlow();
+	
 	Consumer<RBTPPacket> getPacketReceivedConsumer();
 	
 	void setPacketReceivedConsumer(Consumer<RBTPPacket> packetRcvd);
 	
+	/**
+	 * Hands a closing connection's TIMED_WAIT over to the NetworkManager, so it can release everything else right away.
+	 *
+	 * @param lastPacket the connection's last packet, resent whenever the remote retransmits; ownership is passed on
+	 * @param timeout    how long to wait for retransmissions, in milliseconds
+	 */
+	void timeWait(RBTPPacket lastPacket, long timeout);
+	
 	void unbind();
 }
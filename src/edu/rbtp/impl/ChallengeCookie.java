@@ -0,0 +1,158 @@
+package edu.rbtp.impl;
+
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import edu.rbtp.RBTPSocketAddress;
+
+/**
+ * Lets a server hand out challenges without keeping any state for them. The challenge and the server's initial
+ * sequence number are an HMAC of the client's address, its initial sequence number, the difficulty and the current
+ * time slot, under a key only the server knows. The client's ACK-CHA carries all of these back, so the server can
+ * recompute the challenge and check the response before it creates a connection.
+ *
+ * A challenge stays valid for one to two time slots and can only be answered once: answered challenges are remembered
+ * until they expire, so a replayed ACK-CHA can't open another connection without new work. Not thread-safe, each
+ * server uses its own instance from its packet thread.
+ *
+ * @author Roi Atalla
+ */
+final class ChallengeCookie {
+	private static final long SLOT_LENGTH = 64000; // ms
+	
+	private final Mac mac;
+	private final byte[] input = new byte[16 + 2 + 2 + 4 + 1 + 8];
+	private final byte[] output;
+	
+	// Set by issue and check
+	private long challenge;
+	private int sequenceNumber;
+	
+	// Answered challenges with their expiry time
+	private final HashMap<Long, Long> redeemed = new HashMap<>();
+	private long nextPurgeTime;
+	
+	ChallengeCookie() {
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		
+		try {
+			mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		}
+		catch(GeneralSecurityException exc) {
+			throw new RuntimeException(exc);
+		}
+		
+		output = new byte[mac.getMacLength()];
+	}
+	
+	/**
+	 * @return the 56-bit challenge computed by the last issue or successful check
+	 */
+	long getChallenge() {
+		return challenge;
+	}
+	
+	/**
+	 * @return the server's initial sequence number computed by the last issue or successful check
+	 */
+	int getSequenceNumber() {
+		return sequenceNumber;
+	}
+	
+	/**
+	 * Computes the challenge and initial sequence number to send back in the SYN-CHA.
+	 *
+	 * @param synPacket  the client's SYN
+	 * @param difficulty the difficulty the challenge is issued with
+	 */
+	void issue(RBTPPacket synPacket, int difficulty) {
+		compute(synPacket.address, (int)synPacket.sequenceNumber(), difficulty, System.currentTimeMillis() / SLOT_LENGTH);
+	}
+	
+	/**
+	 * Checks that the ACK-CHA answers a challenge we issued in the current or previous time slot, with the difficulty
+	 * it was issued with, and uses the challenge up.
+	 *
+	 * @param ackChaPacket the client's ACK-CHA
+	 * @return true if the response solves the challenge and the challenge was never answered before
+	 */
+	boolean check(RBTPPacket ackChaPacket) {
+		if(ackChaPacket.metadata() == null || ackChaPacket.metadata().capacity() != 8) {
+			return false;
+		}
+		
+		// The client's ACK-CHA comes right after its SYN
+		int clientSequenceNumber = (int)ackChaPacket.sequenceNumber() - 1;
+		int difficulty = ackChaPacket.metadata().get(7) & 0xFF;
+		
+		long now = System.currentTimeMillis();
+		long slot = now / SLOT_LENGTH;
+		for(long s = slot; s >= slot - 1; s--) {
+			compute(ackChaPacket.address, clientSequenceNumber, difficulty, s);
+			if(ChallengeSolver.verify(ackChaPacket, challenge, difficulty)) {
+				purgeExpired(now);
+				
+				// Valid until the end of the slot after the one it was issued in
+				return redeemed.putIfAbsent(challenge, (s + 2) * SLOT_LENGTH) == null;
+			}
+		}
+		
+		return false;
+	}
+	
+	private void purgeExpired(long now) {
+		if(now < nextPurgeTime) {
+			return;
+		}
+		
+		redeemed.values().removeIf(expiryTime -> now >= expiryTime);
+		nextPurgeTime = now + 1000;
+	}
+	
+	private void compute(RBTPSocketAddress address, int clientSequenceNumber, int difficulty, long slot) {
+		InetSocketAddress socketAddress = (InetSocketAddress)address.getAddress();
+		byte[] ip = socketAddress.getAddress().getAddress();
+		
+		int i = 0;
+		for(int j = 0; j < 16; j++) {
+			input[i++] = j < ip.length ? ip[j] : 0;
+		}
+		input[i++] = (byte)(socketAddress.getPort() >>> 8);
+		input[i++] = (byte)socketAddress.getPort();
+		input[i++] = (byte)(address.getPort() >>> 8);
+		input[i++] = (byte)address.getPort();
+		for(int j = 3; j >= 0; j--) {
+			input[i++] = (byte)(clientSequenceNumber >>> (j * 8));
+		}
+		input[i++] = (byte)difficulty;
+		for(int j = 7; j >= 0; j--) {
+			input[i++] = (byte)(slot >>> (j * 8));
+		}
+		
+		mac.update(input, 0, i);
+		try {
+			mac.doFinal(output, 0);
+		}
+		catch(ShortBufferException exc) {
+			throw new RuntimeException(exc);
+		}
+		
+		challenge = 0;
+		for(int j = 0; j < 7; j++) {
+			challenge = (challenge << 8) | (output[j] & 0xFF);
+		}
+		
+		sequenceNumber = 0;
+		for(int j = 7; j < 11; j++) {
+			sequenceNumber = (sequenceNumber << 8) | (output[j] & 0xFF);
+		}
+	}
+}
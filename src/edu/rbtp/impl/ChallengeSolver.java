@@ -0,0 +1,192 @@
+package edu.rbtp.impl;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The handshake challenge: the SHA-1 of an ACK-CHA packet's header, metadata included, must begin with the number of
+ * zero bits the server asked for. The metadata holds a 56-bit nonce followed by the difficulty, and the client finds a
+ * nonce by counting up from the random value the server sent, which lets the server check that a response answers its
+ * own challenge: the nonce can't be much further from the challenge than the expected number of attempts.
+ *
+ * The client's search hashes the header from a byte array it reuses, with one digest per worker, so nothing is
+ * allocated per attempt. Harder challenges are split across the common fork-join pool, each worker trying every
+ * n-th nonce.
+ *
+ * @author Roi Atalla
+ */
+final class ChallengeSolver {
+	private static final int NONCE_OFFSET = 16; // after the fixed 16 bytes of header
+	private static final int NONCE_SIZE = 7;
+	private static final long NONCE_MASK = 0xFFFFFFFFFFFFFFL;
+	
+	// Below this many bits the search is over in well under a millisecond, quicker than handing it to other threads
+	private static final int PARALLEL_DIFFICULTY = 12;
+	
+	// How many attempts a worker makes between checking if another worker found a solution
+	private static final int CHECK_INTERVAL = 256;
+	
+	// A search needs 2^difficulty attempts on average, the odds of one needing 2^10 times that many are nil
+	private static final int MAX_DISTANCE_BITS = 10;
+	
+	private ChallengeSolver() {}
+	
+	/**
+	 * Checks the challenge response the server received against the SYN-CHA it sent.
+	 *
+	 * @param packet          the ACK-CHA packet
+	 * @param challengePacket the SYN-CHA packet
+	 * @return true if the response solves the challenge
+	 */
+	static boolean verify(RBTPPacket packet, RBTPPacket challengePacket) {
+		return verify(packet, getNonce(challengePacket), challengePacket.metadata().get(7) & 0xFF);
+	}
+	
+	/**
+	 * Checks the challenge response the server received.
+	 *
+	 * @param packet     the ACK-CHA packet
+	 * @param challenge  the 56-bit challenge the server issued
+	 * @param difficulty the number of leading zero bits required
+	 * @return true if the packet's nonce was found from the challenge and its SHA-1 begins with enough zero bits
+	 */
+	static boolean verify(RBTPPacket packet, long challenge, int difficulty) {
+		if(packet.metadata() == null || packet.metadata().capacity() != 8) {
+			return false;
+		}
+		
+		long distance = (getNonce(packet) - challenge) & NONCE_MASK;
+		if(distance >= 1L << Math.min(NONCE_SIZE * 8, difficulty + MAX_DISTANCE_BITS)) {
+			return false;
+		}
+		
+		byte[] header = serializeHeader(packet);
+		byte[] hash = newDigest().digest(header);
+		return beginsWithZeroes(hash, difficulty);
+	}
+	
+	private static long getNonce(RBTPPacket packet) {
+		long nonce = 0;
+		for(int i = 0; i < NONCE_SIZE; i++) {
+			nonce = (nonce << 8) | (packet.metadata().get(i) & 0xFF);
+		}
+		
+		return nonce;
+	}
+	
+	/**
+	 * Finds a nonce that solves the challenge, starting from the nonce already in the packet's metadata.
+	 *
+	 * @param packet     the ACK-CHA packet, with its metadata filled in
+	 * @param difficulty the number of leading zero bits required
+	 * @return the nonce to put in the metadata
+	 */
+	static long solve(RBTPPacket packet, int difficulty) {
+		byte[] header = serializeHeader(packet);
+		long start = getNonce(packet);
+		
+		int workers = difficulty < PARALLEL_DIFFICULTY ? 1 : ForkJoinPool.getCommonPoolParallelism();
+		if(workers <= 1) {
+			return search(header, start, 1, difficulty, null);
+		}
+		
+		AtomicLong solution = new AtomicLong(-1);
+		
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[workers - 1];
+		for(int i = 1; i < workers; i++) {
+			long workerStart = (start + i) & NONCE_MASK;
+			tasks[i - 1] = ForkJoinPool.commonPool().submit(() -> search(header.clone(), workerStart, workers, difficulty, solution));
+		}
+		
+		// The calling thread is the first worker
+		search(header, start, workers, difficulty, solution);
+		
+		for(ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+		
+		return solution.get();
+	}
+	
+	/**
+	 * Tries every stride-th nonce from start until one solves the challenge, or until another worker has set the
+	 * solution.
+	 */
+	private static long search(byte[] header, long start, int stride, int difficulty, AtomicLong solution) {
+		MessageDigest digest = newDigest();
+		byte[] hash = new byte[digest.getDigestLength()];
+		
+		long nonce = start;
+		for(int attempts = 1; ; attempts++) {
+			for(int i = 0; i < NONCE_SIZE; i++) {
+				header[NONCE_OFFSET + i] = (byte)(nonce >>> ((NONCE_SIZE - 1 - i) * 8));
+			}
+			
+			digest.update(header, 0, header.length);
+			try {
+				digest.digest(hash, 0, hash.length);
+			}
+			catch(Exception exc) {
+				throw new RuntimeException(exc);
+			}
+			
+			if(beginsWithZeroes(hash, difficulty)) {
+				if(solution != null) {
+					solution.compareAndSet(-1, nonce);
+				}
+				return nonce;
+			}
+			
+			if(solution != null && attempts % CHECK_INTERVAL == 0 && solution.get() != -1) {
+				return -1;
+			}
+			
+			nonce = (nonce + stride) & NONCE_MASK;
+		}
+	}
+	
+	private static boolean beginsWithZeroes(byte[] hash, int n) {
+		for(int i = 0; i < n; i++) {
+			if((hash[i / 8] & (0x80 >>> (i % 8))) != 0) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Lays out the header as it was always hashed: the header fields with a zero checksum, then the metadata.
+	 */
+	private static byte[] serializeHeader(RBTPPacket packet) {
+		ByteBuffer metadata = packet.metadata();
+		
+		byte[] header = new byte[NONCE_OFFSET + metadata.capacity()];
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		buffer.putShort((short)packet.sourcePort());
+		buffer.putShort((short)packet.destinationPort());
+		buffer.putInt((int)packet.sequenceNumber());
+		buffer.putShort((short)packet.headerSize());
+		buffer.putShort(packet.flags());
+		buffer.putShort((short)0);
+		buffer.putShort((short)packet.receiveWindow());
+		for(int i = 0; i < metadata.capacity(); i++) {
+			buffer.put(metadata.get(i));
+		}
+		
+		return header;
+	}
+	
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch(NoSuchAlgorithmException exc) {
+			throw new RuntimeException(exc);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package edu.rbtp.impl;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.rbtp.RBTPSocketAddress;
+
+/**
+ * A process-wide cache of what past connections learned about the path to each remote host, much like TCP's metrics
+ * cache (RFC 2140). When a connection closes it records its smoothed RTT, RTT variance and auto-tuned receive window,
+ * and a new connection to the same host starts from them instead of from the defaults, so that short transfers don't
+ * spend their whole life measuring the path.
+ *
+ * Entries are keyed by host, since all ports of a host share the path, and the least recently used ones are evicted
+ * once the cache is full. Entries older than MAX_AGE are ignored, the path may have changed since.
+ *
+ * @author Roi Atalla
+ */
+final class DestinationMetrics {
+	private static final int MAX_ENTRIES = 1024;
+	private static final long MAX_AGE = 10 * 60 * 1000; // ms
+	
+	private static final LinkedHashMap<InetAddress, DestinationMetrics> cache = new LinkedHashMap<InetAddress, DestinationMetrics>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetAddress, DestinationMetrics> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	
+	final long smoothedRTT; // us
+	final long rttVariance; // us
+	final int windowSize; // bytes, or -1 if the window was not auto-tuned
+	private final long time;
+	
+	private DestinationMetrics(long smoothedRTT, long rttVariance, int windowSize) {
+		this.smoothedRTT = smoothedRTT;
+		this.rttVariance = rttVariance;
+		this.windowSize = windowSize;
+		this.time = System.currentTimeMillis();
+	}
+	
+	/**
+	 * @param address the remote address
+	 * @return the metrics last recorded for the address's host, or null if there are none or they are too old
+	 */
+	static synchronized DestinationMetrics get(RBTPSocketAddress address) {
+		InetAddress host = getHost(address);
+		DestinationMetrics metrics = cache.get(host);
+		
+		if(metrics != null && System.currentTimeMillis() - metrics.time > MAX_AGE) {
+			cache.remove(host);
+			return null;
+		}
+		
+		return metrics;
+	}
+	
+	/**
+	 * Records the metrics of a connection to the address's host, replacing the previous ones.
+	 *
+	 * @param address     the remote address
+	 * @param smoothedRTT the smoothed RTT in microseconds
+	 * @param rttVariance the RTT variance in microseconds
+	 * @param windowSize  the auto-tuned receive window size, or -1 if it was not auto-tuned
+	 */
+	static synchronized void put(RBTPSocketAddress address, long smoothedRTT, long rttVariance, int windowSize) {
+		cache.put(getHost(address), new DestinationMetrics(smoothedRTT, rttVariance, windowSize));
+	}
+	
+	private static InetAddress getHost(RBTPSocketAddress address) {
+		return ((InetSocketAddress)address.getAddress()).getAddress();
+	}
+}
@@ -0,0 +1,311 @@
+package edu.rbtp.impl;
+
+import static edu.rbtp.tools.BufferPool.*;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Shares a NetworkManager's UDP channel between its connections. Each connection sends through its own Flow, which
+ * queues the encoded packets, and a single thread sends them in deficit round robin order: on its turn a flow may send
+ * up to QUANTUM bytes times its weight, so a bulk transfer can't starve interactive connections, and flows that always
+ * have packets queued share the channel in proportion to their weights.
+ *
+ * A flow queues at most MAX_QUEUED_BYTES of data packets, past which its senders block until half of it was sent, so
+ * that the data waits in the connections' own buffers instead of in the kernel's send queue. Packets without a payload
+ * (ACKs, handshake packets, FINs) never block: they go into a separate control queue that is sent ahead of all flows,
+ * so they don't wait behind their connection's own data, and threads that must not block, like the NetworkManager
+ * thread, can send through it too. An optional rate cap paces the whole egress with a token bucket; control packets
+ * are counted against it but never wait for it.
+ *
+ * @author Roi Atalla
+ */
+final class EgressScheduler {
+	static final int MIN_WEIGHT = 1;
+	static final int MAX_WEIGHT = 100;
+	static final int DEFAULT_WEIGHT = MIN_WEIGHT;
+	
+	private static final int DATAGRAM_SIZE = 2048; // a full data packet with its header and metadata
+	private static final int QUANTUM = DATAGRAM_SIZE;
+	private static final int MAX_QUEUED_BYTES = 64 * 1024;
+	private static final int MAX_CONTROL_BYTES = 256 * 1024;
+	private static final long MIN_BURST = 4 * DATAGRAM_SIZE;
+	
+	private static final class Datagram {
+		final ByteBuffer buffer;
+		SocketAddress address;
+		
+		Datagram(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+	
+	/**
+	 * A connection's queue in the scheduler. Sending a packet encodes it right away, so the caller keeps ownership of
+	 * the packet and may change or destroy it as soon as accept returns.
+	 */
+	final class Flow implements Consumer<RBTPPacket> {
+		private final ArrayDeque<Datagram> queue = new ArrayDeque<>();
+		private volatile int weight = DEFAULT_WEIGHT;
+		private int queuedBytes;
+		private int deficit;
+		
+		private Flow() {}
+		
+		/**
+		 * @param weight the flow's share of the channel relative to the other flows, from MIN_WEIGHT to MAX_WEIGHT
+		 */
+		void setWeight(int weight) {
+			if(weight < MIN_WEIGHT || weight > MAX_WEIGHT) {
+				throw new IllegalArgumentException("Weight must be between " + MIN_WEIGHT + " and " + MAX_WEIGHT + ".");
+			}
+			
+			this.weight = weight;
+		}
+		
+		/**
+		 * Queues the packet, blocking while the flow is full if it is a data packet.
+		 */
+		@Override
+		public void accept(RBTPPacket packet) {
+			if(packet.payload() == null) {
+				sendControl(packet);
+				return;
+			}
+			
+			Datagram datagram = encode(packet);
+			int size = datagram.buffer.remaining();
+			
+			lock.lock();
+			try {
+				if(queuedBytes > 0 && queuedBytes + size > MAX_QUEUED_BYTES) {
+					waitingCount++;
+					do {
+						notFull.awaitUninterruptibly();
+					} while(queuedBytes > MAX_QUEUED_BYTES / 2);
+					waitingCount--;
+				}
+				
+				if(queue.isEmpty()) {
+					deficit = QUANTUM * weight;
+					activeFlows.addLast(this);
+					hasPackets.signal();
+				}
+				
+				queue.addLast(datagram);
+				queuedBytes += size;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	private final DatagramChannel channel;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition hasPackets = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final ArrayDeque<Flow> activeFlows = new ArrayDeque<>(); // the flows with queued packets, in turn order
+	private final ArrayDeque<Datagram> controlQueue = new ArrayDeque<>();
+	private int controlBytes;
+	private int waitingCount; // senders blocked on full flows
+	
+	private final ConcurrentLinkedQueue<Datagram> freeDatagrams = new ConcurrentLinkedQueue<>();
+	
+	private volatile long rate; // bytes per second, 0 for no limit
+	private double tokens;
+	private long lastRefillTime;
+	
+	EgressScheduler(DatagramChannel channel) {
+		this.channel = channel;
+		
+		Thread t = new Thread(this::run);
+		t.setName("RBTP Egress Thread");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * @return a new flow with the default weight
+	 */
+	Flow newFlow() {
+		return new Flow();
+	}
+	
+	long getRate() {
+		return rate;
+	}
+	
+	/**
+	 * @param rate the most bytes per second sent by all flows together, 0 for no limit
+	 */
+	void setRate(long rate) {
+		if(rate < 0) {
+			throw new IllegalArgumentException("Negative rate.");
+		}
+		
+		this.rate = rate;
+	}
+	
+	/**
+	 * Queues the packet ahead of all flows without ever blocking. The packet is dropped if the control queue is full,
+	 * like by a full socket buffer, and the remote sends whatever it answers again.
+	 *
+	 * @param packet the packet to send, still owned by the caller once this returns
+	 */
+	void sendControl(RBTPPacket packet) {
+		Datagram datagram = encode(packet);
+		int size = datagram.buffer.remaining();
+		
+		lock.lock();
+		try {
+			if(controlBytes + size > MAX_CONTROL_BYTES) {
+				if(PRINT_DEBUG) {
+					System.out.println("EgressScheduler: control queue full, dropped packet to " + datagram.address);
+				}
+				
+				recycle(datagram);
+				return;
+			}
+			
+			controlQueue.addLast(datagram);
+			controlBytes += size;
+			hasPackets.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private Datagram encode(RBTPPacket packet) {
+		int size = packet.headerSize() * 4 + (packet.payload() == null ? 0 : packet.payload().capacity());
+		
+		Datagram datagram = size <= DATAGRAM_SIZE ? freeDatagrams.poll() : null;
+		if(datagram == null) {
+			datagram = newDatagram(size);
+		}
+		
+		datagram.buffer.clear();
+		packet.encode(datagram.buffer);
+		datagram.buffer.flip();
+		datagram.address = packet.address.getAddress();
+		return datagram;
+	}
+	
+	private void recycle(Datagram datagram) {
+		if(datagram.buffer.isDirect()) {
+			freeDatagrams.offer(datagram);
+		}
+	}
+	
+	private Datagram newDatagram(int size) {
+		if(size > DATAGRAM_SIZE) {
+			return new Datagram(ByteBuffer.allocate(size)); // never recycled
+		}
+		
+		MemoryBudget.reserve(DATAGRAM_SIZE, true);
+		return new Datagram(ByteBuffer.allocateDirect(DATAGRAM_SIZE));
+	}
+	
+	private void run() {
+		while(true) {
+			Datagram datagram;
+			boolean control;
+			
+			lock.lock();
+			try {
+				while(activeFlows.isEmpty() && controlQueue.isEmpty()) {
+					hasPackets.awaitUninterruptibly();
+				}
+				
+				control = !controlQueue.isEmpty();
+				if(control) {
+					datagram = controlQueue.removeFirst();
+					controlBytes -= datagram.buffer.remaining();
+				} else {
+					Flow flow = activeFlows.peekFirst();
+					int size = flow.queue.peekFirst().buffer.remaining();
+					if(size > flow.deficit) {
+						// The flow used up its turn: it gets another quantum once the others had theirs
+						flow.deficit += QUANTUM * flow.weight;
+						activeFlows.addLast(activeFlows.removeFirst());
+						continue;
+					}
+					
+					datagram = flow.queue.removeFirst();
+					flow.deficit -= size;
+					flow.queuedBytes -= size;
+					
+					if(flow.queue.isEmpty()) {
+						flow.deficit = 0;
+						activeFlows.removeFirst();
+					}
+					
+					if(waitingCount > 0 && flow.queuedBytes <= MAX_QUEUED_BYTES / 2) {
+						notFull.signalAll();
+					}
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+			
+			pace(datagram.buffer.remaining(), !control);
+			send(datagram);
+			recycle(datagram);
+		}
+	}
+	
+	/**
+	 * Waits until the token bucket holds enough for the datagram and takes them out. The bucket holds up to 10ms of
+	 * the rate, so that short pauses don't lose their share of it. Control packets don't wait: they take their tokens
+	 * in advance, which the data packets after them wait for.
+	 */
+	private void pace(int size, boolean wait) {
+		long rate = this.rate;
+		if(rate == 0) {
+			return;
+		}
+		
+		long burst = Math.max(MIN_BURST, rate / 100);
+		
+		while(true) {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - lastRefillTime) / 1e9 * rate);
+			lastRefillTime = now;
+			
+			if(tokens >= size || !wait) {
+				tokens = Math.max(-burst, tokens - size);
+				return;
+			}
+			
+			LockSupport.parkNanos((long)((size - tokens) * 1e9 / rate));
+		}
+	}
+	
+	private void send(Datagram datagram) {
+		if(PRINT_DEBUG) {
+			System.out.println("EgressScheduler: sending " + datagram.buffer.remaining() + " bytes to " + datagram.address);
+		}
+		
+		try {
+			while(channel.send(datagram.buffer, datagram.address) == 0)
+				if(PRINT_DEBUG) {
+					System.out.println("EgressScheduler: FAILED TO WRITE BYTES!");
+				}
+		}
+		catch(IOException exc) {
+			// Lost like any other datagram, the connection retransmits it
+			exc.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package edu.rbtp.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.rbtp.tools.BufferPool;
+
+/**
+ * Keeps the direct memory of all connections within one budget, so that a load spike slows connections down instead
+ * of failing allocateDirect. The memory counted is that of the connections' stream buffers and of the BufferPool.
+ *
+ * Past PRESSURE_START of the budget, receive windows shrink towards what the read buffers already hold, so that read
+ * buffers stop growing. Write buffers don't grow past the budget, writers wait for what is queued to be sent instead,
+ * and servers stop admitting connections once a new one's buffers wouldn't fit in it.
+ *
+ * @author Roi Atalla
+ */
+final class MemoryBudget {
+	// The JVM limits direct memory to the maximum heap size by default, some of it is left for everything else
+	static final long DEFAULT_BUDGET = Runtime.getRuntime().maxMemory() == Long.MAX_VALUE ? Long.MAX_VALUE : Runtime.getRuntime().maxMemory() / 4 * 3;
+	
+	private static final double PRESSURE_START = 0.5;
+	
+	// What a new connection starts with: the first chunk of its read and write buffers
+	private static final long CONNECTION_SIZE = 2 * StreamBuffer.CHUNK_SIZE;
+	
+	private static volatile long budget = DEFAULT_BUDGET;
+	private static final AtomicLong streamBufferBytes = new AtomicLong();
+	
+	private MemoryBudget() {}
+	
+	static long getBudget() {
+		return budget;
+	}
+	
+	static void setBudget(long budget) {
+		if(budget <= 0) {
+			throw new IllegalArgumentException("Memory budget must be positive.");
+		}
+		
+		MemoryBudget.budget = budget;
+	}
+	
+	/**
+	 * @return the number of bytes of direct memory in use by the stream buffers and the BufferPool
+	 */
+	static long getUsage() {
+		return streamBufferBytes.get() + BufferPool.getBytesCreatedCount();
+	}
+	
+	/**
+	 * @return 0 below PRESSURE_START of the budget, rising to 1 at the budget
+	 */
+	static double getPressure() {
+		long budget = MemoryBudget.budget;
+		long start = (long)(budget * PRESSURE_START);
+		long usage = getUsage();
+		
+		if(usage <= start) {
+			return 0;
+		}
+		
+		return Math.min(1.0, (double)(usage - start) / (budget - start));
+	}
+	
+	/**
+	 * Accounts for growing a stream buffer.
+	 *
+	 * @param bytes    the number of bytes to add
+	 * @param required true if the buffer must grow even past the budget
+	 * @return true if the bytes fit in the budget, or were required
+	 */
+	static boolean reserve(long bytes, boolean required) {
+		if(!required && getUsage() + bytes > budget) {
+			return false;
+		}
+		
+		streamBufferBytes.addAndGet(bytes);
+		return true;
+	}
+	
+	/**
+	 * Accounts for shrinking or dropping a stream buffer.
+	 *
+	 * @param bytes the number of bytes to remove
+	 */
+	static void release(long bytes) {
+		streamBufferBytes.addAndGet(-bytes);
+	}
+	
+	/**
+	 * @return true if the buffers of a new connection fit in the budget
+	 */
+	static boolean canAdmitConnection() {
+		return getUsage() + CONNECTION_SIZE <= budget;
+	}
+	
+	/**
+	 * Shrinks a receive window with the memory pressure, down to what the receive buffer already holds.
+	 *
+	 * @param window    the window to advertise without pressure
+	 * @param allocated the current capacity of the receive buffer
+	 * @return the window to advertise
+	 */
+	static int limitWindow(int window, int allocated) {
+		double pressure = getPressure();
+		if(pressure == 0) {
+			return window;
+		}
+		
+		return (int)Math.min(window, Math.max(allocated, window * (1 - pressure)));
+	}
+}
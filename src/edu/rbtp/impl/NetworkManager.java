@@ -19,14 +19,24 @@ import edu.rbtp.tools.BufferPool;
  * @author Roi Atalla
  */
 public class NetworkManager {
+	// Ports handed out to connections, the ones below are left for servers
+	private static final int FIRST_EPHEMERAL_PORT = 1024;
+	private static final int EPHEMERAL_PORT_COUNT = 65536 - FIRST_EPHEMERAL_PORT;
+	
 	private DatagramChannel channel;
 	private ConcurrentHashMap<Short, ConnectionInfo> connectionMap;
+	private TimeWaitTable timeWaitTable;
+	private EgressScheduler egressScheduler;
+	private int nextEphemeralPort;
 	
 	private NetworkManager(int port) throws IOException {
 		channel = DatagramChannel.open();
 		channel.bind(new InetSocketAddress(port));
 		
 		connectionMap = new ConcurrentHashMap<>();
+		egressScheduler = new EgressScheduler(channel);
+		timeWaitTable = new TimeWaitTable(egressScheduler::sendControl);
+		nextEphemeralPort = (int)(Math.random() * EPHEMERAL_PORT_COUNT);
 		
 		Thread t = new Thread(new NetworkManagerThread());
 		t.setName("RBTP Network Manager Thread");
@@ -44,6 +54,42 @@ public class NetworkManager {
 		return instance;
 	}
 	
+	/**
+	 * @return the bytes of direct memory used by all connections' buffers and the packet buffer pool
+	 */
+	public long getMemoryUsage() {
+		return MemoryBudget.getUsage();
+	}
+	
+	public long getMemoryBudget() {
+		return MemoryBudget.getBudget();
+	}
+	
+	/**
+	 * Sets how much direct memory all connections may use together. Receive windows shrink as usage gets closer to
+	 * the budget, write buffers stop growing at the budget, and servers stop accepting connections that wouldn't fit.
+	 * The default is 3/4 of the JVM's default direct memory limit.
+	 *
+	 * @param budget the budget in bytes
+	 */
+	public void setMemoryBudget(long budget) {
+		MemoryBudget.setBudget(budget);
+	}
+	
+	public long getEgressRate() {
+		return egressScheduler.getRate();
+	}
+	
+	/**
+	 * Caps the rate all connections send at together. Connections already share the UDP channel according to their
+	 * send weights, see RBTPSocket.setSendWeight.
+	 *
+	 * @param rate the rate in bytes per second, 0 for no limit
+	 */
+	public void setEgressRate(long rate) {
+		egressScheduler.setRate(rate);
+	}
+	
 	/**
 	 * This init method *MUST* be called before using NetworkManager at all.
 	 *
@@ -65,13 +111,25 @@ public class NetworkManager {
 		return instance;
 	}
 	
+	/**
+	 * Binds the socket to the next free ephemeral port. Ports are handed out in turn from a random start, so a port is
+	 * only reused after all others were, and ports whose connections are still in TIMED_WAIT are skipped.
+	 *
+	 * @param socket the socket to bind
+	 * @throws IOException if every ephemeral port is in use
+	 */
 	public synchronized void bindSocketToAnyPort(Bindable socket) throws IOException {
-		short port;
-		do {
-			port = (short)(Math.random() * 256 * 256);
-		} while(connectionMap.containsKey(port));
+		for(int i = 0; i < EPHEMERAL_PORT_COUNT; i++) {
+			short port = (short)(FIRST_EPHEMERAL_PORT + nextEphemeralPort);
+			nextEphemeralPort = (nextEphemeralPort + 1) % EPHEMERAL_PORT_COUNT;
+			
+			if(!connectionMap.containsKey(port) && !timeWaitTable.isPortInUse(port)) {
+				bindSocket(port, socket);
+				return;
+			}
+		}
 		
-		bindSocket(port, socket);
+		throw new IOException("No free port.");
 	}
 	
 	public synchronized void bindSocket(short port, Bindable socket) throws IOException {
@@ -111,6 +169,11 @@ public class NetworkManager {
 			return this;
 		}
 		
+		@Override
+		public EgressScheduler.Flow openFlow() {
+			return egressScheduler.newFlow();
+		}
+		
 		@Override
 		public Consumer<RBTPPacket> getPacketReceivedConsumer() {
 			return packetReceived;
@@ -122,32 +185,22 @@ public class NetworkManager {
 		}
 		
 		@Override
-		public void unbind() {
-			connectionMap.remove(port);
+		public void timeWait(RBTPPacket lastPacket, long timeout) {
+			timeWaitTable.add(port, lastPacket, timeout);
 		}
 		
-		private ByteBuffer sendBuffer = ByteBuffer.allocateDirect(8192);
+		@Override
+		public void unbind() {
+			connectionMap.remove(port, this);
+		}
 		
 		@Override
-		public synchronized void accept(RBTPPacket packet) {
-			sendBuffer.clear();
-			packet.encode(sendBuffer);
-			sendBuffer.flip();
-			
+		public void accept(RBTPPacket packet) {
 			if(PRINT_DEBUG) {
 				System.out.println("NetworkManager: sending packet seq: " + packet.sequenceNumber() + ", dest: " + packet.address);
 			}
 			
-			try {
-				while(channel.send(sendBuffer, packet.address.getAddress()) == 0)
-					if(PRINT_DEBUG) {
-						System.out.println("NetworkManager: FAILED TO WRITE BYTES!");
-					}
-			}
-			catch(IOException exc) {
-				exc.printStackTrace();
-				throw new RuntimeException(exc);
-			}
+			egressScheduler.sendControl(packet);
 		}
 	}
 	
@@ -188,6 +241,13 @@ public class NetworkManager {
 						System.out.println(BufferPool.getBuffersCreatedCount() + " buffers created so far.");
 					}
 					
+					packet.address = new RBTPSocketAddress((InetSocketAddress)address, packet.sourcePort());
+					
+					// Connections in TIMED_WAIT may share their port with a server, so they are looked up first
+					if(timeWaitTable.consume(packet)) {
+						continue;
+					}
+					
 					ConnectionInfo connection = connectionMap.get((short)packet.destinationPort());
 					if(connection == null) {
 						noMappingFoundCount++;
@@ -198,7 +258,6 @@ public class NetworkManager {
 						continue;
 					}
 					
-					packet.address = new RBTPSocketAddress((InetSocketAddress)address, packet.sourcePort());
 					if(PRINT_DEBUG) {
 						System.out.println("NetworkManager: received packet seq: " + packet.sequenceNumber() + ", destPort: " + packet.destinationPort() + ", source: " + packet.address);
 					}
@@ -4,16 +4,26 @@ import static edu.rbtp.tools.BufferPool.*;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Random;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 
 import edu.rbtp.RBTPSocketAddress;
 import edu.rbtp.tools.BufferPool;
+import edu.rbtp.tools.SPSCRing;
+import edu.rbtp.tools.Threads;
 
 /**
  * The RBTPConnection is where all the action happens. Complete implementation of RBTP.
@@ -26,26 +36,196 @@ public class RBTPConnection implements Bindable {
 		CLOSING, TIMED_WAIT, CLOSE_WAIT, LAST_ACK
 	}
 	
-	private static final int MAX_PACKET_SIZE = 1456;
+	static final int MAX_PACKET_SIZE = 1456;
+	private static final long BUFFER_IDLE_TIME = 5000;
+	private static final int PACKET_QUEUE_SIZE = 4096; // enough for a full max-sized window of data packets
+	private static final int ACK_QUEUE_SIZE = 1024;
+	private static final int MAX_STREAMS = 1024;
+	
+	public static final int DEFAULT_MIN_WINDOW_SIZE = 10000;
+	public static final int DEFAULT_MAX_WINDOW_SIZE = 4 * 1024 * 1024;
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 8 * 1024 * 1024;
+	public static final int DEFAULT_READ_LOW_WATER_MARK = 1;
+	public static final int DEFAULT_WRITE_LOW_WATER_MARK = MAX_PACKET_SIZE;
+	public static final int MIN_SEND_WEIGHT = EgressScheduler.MIN_WEIGHT;
+	public static final int MAX_SEND_WEIGHT = EgressScheduler.MAX_WEIGHT;
+	public static final int DEFAULT_SEND_WEIGHT = EgressScheduler.DEFAULT_WEIGHT;
 	
 	private volatile RBTPConnectionState state;
-	private int maxWindowSize = 10000;
+	private volatile int maxWindowSize = DEFAULT_MIN_WINDOW_SIZE;
+	private volatile int minWindowSizeBound = DEFAULT_MIN_WINDOW_SIZE;
+	private volatile int maxWindowSizeBound = DEFAULT_MAX_WINDOW_SIZE;
+	private volatile boolean windowAutoTuning = true;
+	private volatile int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+	private volatile int readLowWaterMark = DEFAULT_READ_LOW_WATER_MARK;
+	private volatile int writeLowWaterMark = DEFAULT_WRITE_LOW_WATER_MARK;
 	private final long TIMEOUT = 100;
 	private final int TIMEOUT_COUNT_LIMIT = 100;
+	private final long TIMED_WAIT_TIMEOUT = 2000;
+	private final long ACK_DELAY = 2;
+	private final long MIN_RTO = 5;
+	private final long MAX_RTO = 2000;
 	
 	private int duplicateCount = 0;
+	private int droppedCount = 0;
 	private int dataPackets = 0;
 	private int totalPackets = 0;
 	
+	private static volatile boolean defaultSingleThreaded = Boolean.getBoolean("rbtp.singleThreaded");
+	
 	private volatile boolean requestClose;
+	private volatile boolean finReceived; // the remote end will not send any more data
+	private boolean singleThreaded;
+	private volatile boolean inlineTransmit = Boolean.getBoolean("rbtp.inlineTransmit");
+	private volatile boolean messageMode;
+	private volatile long messageLifetime;
+	private volatile int sendWeight = DEFAULT_SEND_WEIGHT;
 	private BindingInterface bindingInterface;
+	private EgressScheduler.Flow flow;
 	private Consumer<RBTPPacket> sendPacket;
 	private RBTPOutputStreamThread outputStreamThread;
 	private RBTPInputStreamThread inputStreamThread;
 	private RBTPSocketAddress remoteAddress;
+	private final RTTEstimator rttEstimator = new RTTEstimator();
+	
+	// Called by the connection threads whenever the connection may have become readable, writable or connected
+	private volatile Runnable readinessListener;
+	
+	// Completed by the state machine once the handshake succeeds or fails
+	private final CompletableFuture<RBTPConnection> handshake = new CompletableFuture<>();
+	
+	// Application threads park on these until the connection makes progress
+	private final ReentrantLock waitLock = new ReentrantLock();
+	private final Condition readable = waitLock.newCondition();
+	private final Condition writable = waitLock.newCondition();
+	
+	// The amount of readable data or free buffer space a blocked reader or writer is waiting for, so that the
+	// connection threads only wake it up once there is enough
+	private volatile int readableMark = Integer.MAX_VALUE;
+	private volatile int writableMark = Integer.MAX_VALUE;
+	
+	// Streams opened by either end, see RBTPStream. Ids opened by the client are odd and by the server even.
+	private final ConcurrentHashMap<Integer, RBTPStream> streams = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<RBTPStream> incomingStreams = new ConcurrentLinkedQueue<>();
+	private int nextStreamId;
 	
 	public RBTPConnection() {
 		state = RBTPConnectionState.CLOSED;
+		singleThreaded = defaultSingleThreaded;
+	}
+	
+	public static boolean isDefaultSingleThreaded() {
+		return defaultSingleThreaded;
+	}
+	
+	/**
+	 * Sets whether connections created from now on run single-threaded, see setSingleThreaded. This is also set by
+	 * starting Java with -Drbtp.singleThreaded=true
+	 *
+	 * @param singleThreaded true for new connections to run single-threaded
+	 */
+	public static void setDefaultSingleThreaded(boolean singleThreaded) {
+		defaultSingleThreaded = singleThreaded;
+	}
+	
+	public boolean isSingleThreaded() {
+		return singleThreaded;
+	}
+	
+	/**
+	 * In single-threaded mode, a single thread handles both directions of the connection: received packets, ACKs,
+	 * timers and written data are all handled in one loop. ACKs are then acted on as soon as they are received instead
+	 * of being handed off from the input stream thread to the output stream thread. Must be set before binding.
+	 *
+	 * @param singleThreaded true to run the connection on a single thread
+	 */
+	public void setSingleThreaded(boolean singleThreaded) {
+		if(bindingInterface != null) {
+			throw new IllegalStateException("Already bound.");
+		}
+		
+		this.singleThreaded = singleThreaded;
+	}
+	
+	public boolean isMessageMode() {
+		return messageMode;
+	}
+	
+	/**
+	 * In message mode, each write is delivered as exactly one message by a single read on the other end, like a
+	 * SOCK_SEQPACKET socket. Message boundaries are carried by the EOM flag on the last packet of each message, so
+	 * no length prefix is needed. A message must fit in the write buffer and in the remote's read buffer.
+	 *
+	 * Before connecting, this requests message mode. A server must allow it too, otherwise the connection falls
+	 * back to a stream. Once connected, this reports whether message mode was negotiated.
+	 *
+	 * @param messageMode true to request message mode
+	 */
+	public void setMessageMode(boolean messageMode) {
+		if(state != RBTPConnectionState.CLOSED || handshake.isDone()) {
+			throw new IllegalStateException("Already connected.");
+		}
+		
+		this.messageMode = messageMode;
+	}
+	
+	public long getMessageLifetime() {
+		return messageLifetime;
+	}
+	
+	/**
+	 * Sets the default lifetime of messages, for partially reliable delivery like PR-SCTP. A message that is not
+	 * ACK-ed within its lifetime is no longer retransmitted and the remote is told to skip it, so a lost message
+	 * never holds back the ones after it for longer than its lifetime. A message that expires before any of it was
+	 * sent is dropped without being sent at all. Only used in message mode.
+	 *
+	 * @param lifetime the lifetime in milliseconds, 0 for fully reliable delivery
+	 */
+	public void setMessageLifetime(long lifetime) {
+		if(lifetime < 0) {
+			throw new IllegalArgumentException("Negative lifetime.");
+		}
+		
+		this.messageLifetime = lifetime;
+	}
+	
+	public int getSendWeight() {
+		return sendWeight;
+	}
+	
+	/**
+	 * Sets this connection's share of the NetworkManager's egress relative to the other connections: while several
+	 * connections have packets waiting to be sent, each sends in proportion to its weight.
+	 *
+	 * @param weight the weight, from MIN_SEND_WEIGHT to MAX_SEND_WEIGHT, DEFAULT_SEND_WEIGHT by default
+	 */
+	public void setSendWeight(int weight) {
+		if(weight < MIN_SEND_WEIGHT || weight > MAX_SEND_WEIGHT) {
+			throw new IllegalArgumentException("Send weight must be between " + MIN_SEND_WEIGHT + " and " + MAX_SEND_WEIGHT + ".");
+		}
+		
+		this.sendWeight = weight;
+		
+		EgressScheduler.Flow flow = this.flow;
+		if(flow != null) {
+			flow.setWeight(weight);
+		}
+	}
+	
+	public boolean isInlineTransmit() {
+		return inlineTransmit;
+	}
+	
+	/**
+	 * When enabled, write packetizes and sends the data right away on the calling thread if the remote receive window
+	 * is open, instead of handing it off to the connection thread, which is then only left with ACKs, retransmissions
+	 * and sending data that did not fit in the window. This saves a thread hand-off per write for small
+	 * request/response exchanges. Also enabled by starting Java with -Drbtp.inlineTransmit=true
+	 *
+	 * @param inlineTransmit true to send on the writing thread when possible
+	 */
+	public void setInlineTransmit(boolean inlineTransmit) {
+		this.inlineTransmit = inlineTransmit;
 	}
 	
 	public boolean isBound() {
@@ -58,10 +238,13 @@ public class RBTPConnection implements Bindable {
 		}
 		
 		this.bindingInterface = bindingInterface;
-		this.sendPacket = bindingInterface.getPacketSendConsumer();
+		this.flow = bindingInterface.openFlow();
+		this.flow.setWeight(sendWeight);
+		this.sendPacket = flow;
 		
 		inputStreamThread = new RBTPInputStreamThread();
-		outputStreamThread = new RBTPOutputStreamThread();
+		// In single-threaded mode both streams share the same wakeup signal
+		outputStreamThread = new RBTPOutputStreamThread(singleThreaded ? inputStreamThread.wakeup : new WakeupSignal());
 		bindingInterface.setPacketReceivedConsumer(inputStreamThread);
 	}
 	
@@ -73,19 +256,190 @@ public class RBTPConnection implements Bindable {
 		return maxWindowSize;
 	}
 	
+	/**
+	 * Sets a fixed receive window size. This turns off window auto-tuning.
+	 *
+	 * @param windowSize the new receive window size
+	 */
 	public void setWindowSize(int windowSize) {
+		this.windowAutoTuning = false;
 		this.maxWindowSize = windowSize;
 	}
 	
+	public boolean isWindowAutoTuning() {
+		return windowAutoTuning;
+	}
+	
+	/**
+	 * When enabled, the receive window follows the measured bandwidth-delay product of the path, within the
+	 * bounds set by setWindowSizeBounds. Enabled by default.
+	 *
+	 * @param autoTuning whether to auto-tune the receive window
+	 */
+	public void setWindowAutoTuning(boolean autoTuning) {
+		this.windowAutoTuning = autoTuning;
+	}
+	
+	public int getMinWindowSize() {
+		return minWindowSizeBound;
+	}
+	
+	public int getMaxWindowSize() {
+		return maxWindowSizeBound;
+	}
+	
+	/**
+	 * Sets the bounds within which the auto-tuned receive window is kept.
+	 *
+	 * @param minWindowSize the smallest window to advertise
+	 * @param maxWindowSize the largest window to advertise, at most the size of the read buffer
+	 */
+	public void setWindowSizeBounds(int minWindowSize, int maxWindowSize) {
+		if(minWindowSize <= 0 || minWindowSize > maxWindowSize) {
+			throw new IllegalArgumentException("Invalid window size bounds: " + minWindowSize + " - " + maxWindowSize);
+		}
+		
+		if(maxWindowSize > maxBufferSize) {
+			throw new IllegalArgumentException("Max window size larger than the read buffer.");
+		}
+		
+		this.minWindowSizeBound = minWindowSize;
+		this.maxWindowSizeBound = maxWindowSize;
+		this.maxWindowSize = Math.max(minWindowSize, Math.min(maxWindowSize, this.maxWindowSize));
+	}
+	
+	public int getMaxBufferSize() {
+		return maxBufferSize;
+	}
+	
+	/**
+	 * Sets the maximum size of each of the read and write buffers. The buffers start small and only grow up to this
+	 * size as needed, then shrink back once the connection has been idle for a while.
+	 *
+	 * @param maxBufferSize the maximum size of each buffer in bytes
+	 */
+	public void setMaxBufferSize(int maxBufferSize) {
+		if(maxBufferSize < MAX_PACKET_SIZE) {
+			throw new IllegalArgumentException("Max buffer size must be at least " + MAX_PACKET_SIZE + " bytes.");
+		}
+		
+		this.maxBufferSize = maxBufferSize;
+		
+		if(minWindowSizeBound > maxBufferSize || maxWindowSizeBound > maxBufferSize) {
+			setWindowSizeBounds(Math.min(minWindowSizeBound, maxBufferSize), maxBufferSize);
+		}
+		
+		if(outputStreamThread != null) {
+			synchronized(outputStreamThread.outputBuffer) {
+				outputStreamThread.outputBuffer.setMaxCapacity(maxBufferSize);
+			}
+			synchronized(inputStreamThread.readBuffer) {
+				inputStreamThread.readBuffer.setMaxCapacity(maxBufferSize);
+			}
+		}
+	}
+	
+	public int getReadLowWaterMark() {
+		return readLowWaterMark;
+	}
+	
+	/**
+	 * Sets the minimum number of bytes a blocking read waits for before returning, unless the buffer being read into
+	 * has less space than that or the connection is closing. Defaults to 1 byte.
+	 *
+	 * @param readLowWaterMark the minimum number of bytes to wait for
+	 */
+	public void setReadLowWaterMark(int readLowWaterMark) {
+		if(readLowWaterMark <= 0) {
+			throw new IllegalArgumentException("Low-water mark must be positive.");
+		}
+		
+		this.readLowWaterMark = readLowWaterMark;
+	}
+	
+	public int getWriteLowWaterMark() {
+		return writeLowWaterMark;
+	}
+	
+	/**
+	 * Sets the minimum free space in the write buffer a blocking write waits for before copying more data, unless less
+	 * data than that is left to write. Defaults to the size of a full packet.
+	 *
+	 * @param writeLowWaterMark the minimum free space to wait for
+	 */
+	public void setWriteLowWaterMark(int writeLowWaterMark) {
+		if(writeLowWaterMark <= 0) {
+			throw new IllegalArgumentException("Low-water mark must be positive.");
+		}
+		
+		this.writeLowWaterMark = writeLowWaterMark;
+	}
+	
 	private static Random rng = new Random();
 	
+	// The resumption tickets servers gave us, by server address. Each one is used up by the next connect to that server.
+	private static final int MAX_RESUMPTION_TICKETS = 1024;
+	private static final ConcurrentHashMap<RBTPSocketAddress, byte[]> resumptionTickets = new ConcurrentHashMap<>();
+	
+	// On the server, the ticket to give the client in the ACK that ends the handshake
+	private ByteBuffer resumptionTicket;
+	
+	// On the client, the data to send with the ACK-CHA
+	private ByteBuffer initialData;
+	
 	/**
 	 * The connect sends the SYN packet and initiates the connection to the remote address.
 	 *
 	 * @param address the remote address to connect to
 	 * @throws IOException
 	 */
-	public synchronized void connect(RBTPSocketAddress address) throws IOException {
+	public void connect(RBTPSocketAddress address) throws IOException {
+		connect(address, null);
+	}
+	
+	/**
+	 * The connect sends the SYN packet and initiates the connection to the remote address.
+	 *
+	 * @param address     the remote address to connect to
+	 * @param initialData data to send along with the handshake, see startConnect
+	 * @throws IOException
+	 */
+	public void connect(RBTPSocketAddress address, ByteBuffer initialData) throws IOException {
+		// Waits outside of startConnect's monitor so that virtual threads do not stay pinned during the handshake
+		startConnect(address, initialData);
+		
+		try {
+			handshake.join();
+		}
+		catch(CompletionException exc) {
+			close();
+			throw new IOException("Connect failed. state: " + state);
+		}
+	}
+	
+	/**
+	 * Sends the SYN packet and returns without waiting for the handshake to finish.
+	 *
+	 * @param address the remote address to connect to
+	 * @return the future of the handshake, see getHandshakeFuture
+	 */
+	public CompletableFuture<RBTPConnection> startConnect(RBTPSocketAddress address) {
+		return startConnect(address, null);
+	}
+	
+	/**
+	 * Sends the SYN packet and returns without waiting for the handshake to finish.
+	 *
+	 * Up to one packet of initial data is sent with the ACK-CHA, the last packet of the handshake, so that the server
+	 * can read it as soon as the connection is established instead of a round trip later. The data is copied right
+	 * away and the buffer's position is advanced past it. In message mode, the remaining bytes are sent as one
+	 * message, which must fit in a packet.
+	 *
+	 * @param address     the remote address to connect to
+	 * @param initialData data to send along with the handshake, may be null
+	 * @return the future of the handshake, see getHandshakeFuture
+	 */
+	public synchronized CompletableFuture<RBTPConnection> startConnect(RBTPSocketAddress address, ByteBuffer initialData) {
 		if(remoteAddress != null) {
 			throw new IllegalStateException("Already connected.");
 		}
@@ -94,183 +448,807 @@ public class RBTPConnection implements Bindable {
 			throw new IllegalStateException("Socket not bound.");
 		}
 		
+		if(initialData != null && initialData.hasRemaining()) {
+			if(messageMode && initialData.remaining() > MAX_PACKET_SIZE) {
+				throw new IllegalArgumentException("Initial message larger than " + MAX_PACKET_SIZE + " bytes.");
+			}
+			
+			ByteBuffer data = BufferPool.getBuffer(Math.min(initialData.remaining(), MAX_PACKET_SIZE));
+			ByteBuffer src = initialData.duplicate();
+			src.limit(src.position() + data.capacity());
+			data.put(src);
+			data.flip();
+			initialData.position(src.position());
+			
+			this.initialData = data;
+		}
+		
 		remoteAddress = address;
+		nextStreamId = 1;
+		loadDestinationMetrics();
 		
 		state = RBTPConnectionState.SYN_SENT;
 		RBTPPacket synPacket = new RBTPPacket();
 		setupPacket(synPacket, maxWindowSize);
 		synPacket.sequenceNumber(rng.nextInt()); // choose a random starting sequence number
 		synPacket.syn(true);
+		synPacket.msg(messageMode);
+		
+		// A ticket from our last connection to this server lets us skip the challenge
+		byte[] ticket = resumptionTickets.remove(address);
+		if(ticket != null) {
+			ByteBuffer metadata = BufferPool.getBuffer(ticket.length);
+			metadata.put(ticket);
+			metadata.flip();
+			synPacket.metadata(metadata);
+		}
 		
+		synPacket.sendTime = System.nanoTime();
 		sendPacket.accept(synPacket);
 		
 		inputStreamThread.init(synPacket);
 		
 		startNetworkThreads();
 		
-		while(state != RBTPConnectionState.ESTABLISHED && state != RBTPConnectionState.CLOSED) {
-			try {
-				Thread.sleep(10);
-			}
-			catch(InterruptedException exc) {
-			}
-		}
-		
-		if(state != RBTPConnectionState.ESTABLISHED) {
-			close();
-			throw new IOException("Connect failed. state: " + state);
-		}
+		return handshake;
 	}
 	
 	/**
-	 * This is called by the server implementation. The received SYN packet is passed to the accept method
-	 * and the SYN-CHA packet is sent back.
+	 * This is called by the server implementation once a client answered a challenge. The server sent the SYN-CHA
+	 * without keeping any state, so it is rebuilt here from the cookie values, as if this connection had sent it, and
+	 * the ACK-CHA packet is then handled as usual.
 	 *
-	 * @param synPacket the SYN packet the server received.
+	 * @param ackChaPacket   the ACK-CHA packet the server received.
+	 * @param sequenceNumber the starting sequence number the SYN-CHA was sent with
+	 * @param challenge      the 56-bit challenge the SYN-CHA was sent with
+	 * @param difficulty     the number of leading zero bits the client's challenge response must have
+	 * @param ticket         the resumption ticket to send with the ACK, or null
 	 */
-	void accept(RBTPPacket synPacket) {
+	void accept(RBTPPacket ackChaPacket, int sequenceNumber, long challenge, int difficulty, ByteBuffer ticket) {
 		state = RBTPConnectionState.SYN_RCVD;
+		resumptionTicket = ticket;
 		
-		remoteAddress = synPacket.address;
+		remoteAddress = ackChaPacket.address;
+		nextStreamId = 2;
+		loadDestinationMetrics();
+		
+		// Message mode is on if the client requested it and the server allows it
+		messageMode &= ackChaPacket.msg();
 		
 		RBTPPacket chaPacket = new RBTPPacket();
 		setupPacket(chaPacket, this.maxWindowSize);
-		chaPacket.sequenceNumber(rng.nextInt()); // choose a random starting sequence number
+		chaPacket.sequenceNumber(sequenceNumber);
 		chaPacket.syn(true);
 		chaPacket.cha(true);
+		chaPacket.msg(messageMode);
 		ByteBuffer metadata = BufferPool.getBuffer(8);
-		long randValue = rng.nextLong() & 0xFFFFFFFFFFFFFFL; // the challenge is a random 56-bit value
 		for(int i = 6; i >= 0; i--) {
-			metadata.put((byte)(randValue >>> (i * 8)));
+			metadata.put((byte)(challenge >>> (i * 8)));
 		}
-		metadata.put((byte)13); // 13 zeroes for now, should be an average of 100ms
+		metadata.put((byte)difficulty);
 		metadata.flip();
 		chaPacket.metadata(metadata);
 		
-		sendPacket.accept(chaPacket);
-		
 		inputStreamThread.init(chaPacket);
 		
 		startNetworkThreads();
 		
+		inputStreamThread.accept(ackChaPacket);
+		
 		if(PRINT_DEBUG) {
-			System.out.println("SERVER: Accepted SYN, sending SYN-CHA, seq: " + chaPacket.sequenceNumber() + ", RandNum: " + randValue);
+			System.out.println("SERVER: Accepted ACK-CHA, seq: " + sequenceNumber + ", RandNum: " + challenge + ", difficulty: " + difficulty);
 		}
 	}
 	
-	private void startNetworkThreads() {
-		Thread ost = new Thread(outputStreamThread);
-		ost.setName("RBTP Output Stream Thread port: " + bindingInterface.getPort());
-		ost.start();
+	/**
+	 * This is called by the server implementation when the client's SYN carried a valid resumption ticket. The
+	 * challenge is skipped: the ACK is sent right away and the connection is established.
+	 *
+	 * @param synPacket the SYN packet the server received.
+	 * @param ticket    the new resumption ticket to send with the ACK, or null
+	 */
+	void resume(RBTPPacket synPacket, ByteBuffer ticket) {
+		state = RBTPConnectionState.SYN_RCVD;
 		
-		Thread ist = new Thread(inputStreamThread);
-		ist.setName("RBTP Input Stream Thread port: " + bindingInterface.getPort());
-		ist.start();
+		remoteAddress = synPacket.address;
+		nextStreamId = 2;
+		loadDestinationMetrics();
 		
-		// Wait for all threads to terminate to unbind this Bindable
-		new Thread(() -> {
-			while(ost.isAlive()) {
-				try {
-					ost.join();
-				}
-				catch(Exception exc) {
-				}
-			}
-			
-			while(ist.isAlive()) {
-				try {
-					ist.join();
-				}
-				catch(Exception exc) {
-				}
-			}
-			
-			if(PRINT_DEBUG) {
-				System.out.println("CONNECTION: Unbinding.");
-			}
-			bindingInterface.unbind();
-		}).start();
+		// Message mode is on if the client requested it and the server allows it
+		messageMode &= synPacket.msg();
+		
+		RBTPPacket ackPacket = new RBTPPacket();
+		setupPacket(ackPacket, maxWindowSize);
+		ackPacket.sequenceNumber(rng.nextInt()); // choose a random starting sequence number
+		ackPacket.ack(true);
+		ackPacket.msg(messageMode);
+		ackPacket.metadata(ticket);
+		sendPacket.accept(ackPacket);
+		
+		// Both sides start counting from the SYN, since there is no ACK-CHA
+		outputStreamThread.init(synPacket.receiveWindow() << synPacket.scale(), ackPacket.sequenceNumber());
+		inputStreamThread.initResumed(ackPacket, synPacket.sequenceNumber());
+		
+		startNetworkThreads();
+		
+		setState(RBTPConnectionState.ESTABLISHED);
+		
+		if(PRINT_DEBUG) {
+			System.out.println("SERVER: Redeemed resumption ticket, sending ACK, seq: " + ackPacket.sequenceNumber());
+		}
 	}
 	
-	private void setupPacket(RBTPPacket packet, int receiveWindow) {
-		packet.address = remoteAddress;
-		packet.sourcePort(bindingInterface.getPort());
-		packet.destinationPort(remoteAddress.getPort());
+	/**
+	 * Starts from what the last connection to the same host learned, see DestinationMetrics: the RTT estimate, which
+	 * sets the retransmission timeout before the first sample, and the auto-tuned receive window.
+	 */
+	private void loadDestinationMetrics() {
+		DestinationMetrics metrics = DestinationMetrics.get(remoteAddress);
+		if(metrics == null) {
+			return;
+		}
 		
-		byte scale = 0;
+		rttEstimator.seed(metrics.smoothedRTT, metrics.rttVariance);
 		
-		while(receiveWindow > 0xFFFF) {
-			receiveWindow >>>= 1;
-			scale++;
+		if(windowAutoTuning && metrics.windowSize != -1) {
+			maxWindowSize = Math.max(minWindowSizeBound, Math.min(maxWindowSizeBound, metrics.windowSize));
 		}
 		
-		packet.scale(scale);
-		packet.receiveWindow((short)receiveWindow);
+		if(PRINT_DEBUG) {
+			System.out.println("CONNECTION: Cached metrics for " + remoteAddress + ", RTT: " + metrics.smoothedRTT + " us, window: " + maxWindowSize);
+		}
 	}
 	
 	/**
-	 * This method reads as much as it can and returns the number of bytes read.
-	 * During blocking mode, it will return when it reads at least 1 byte.
-	 *
-	 * @param data  reads data in the remaining space
-	 * @param block to block or not to block
-	 * @return the number of bytes read
-	 * @throws IOException
+	 * Records what this connection learned about the path for the next connection to the same host.
 	 */
-	public int read(ByteBuffer data, boolean block) throws IOException {
-		if(block) {
-			int read;
-			while((read = inputStreamThread.read(data)) == 0 && !isClosed()) {
-				try {
-					Thread.sleep(100);
-				}
-				catch(Exception exc) {
-				}
-			}
-			
-			return read;
-		} else {
-			return inputStreamThread.read(data);
+	private void saveDestinationMetrics() {
+		if(remoteAddress == null || !handshake.isDone() || handshake.isCompletedExceptionally() || !rttEstimator.hasSample()) {
+			return;
 		}
+		
+		DestinationMetrics.put(remoteAddress, rttEstimator.getSmoothedRTT(), rttEstimator.getRTTVariance(), windowAutoTuning ? maxWindowSize : -1);
 	}
 	
 	/**
-	 * This method writes as much as it can and returns the number of bytes written.
-	 *
-	 * @param data writes data from the remaining space
-	 * @return the number of bytes written
-	 * @throws IOException
+	 * Keeps the resumption ticket the server sent with its ACK, for the next connect to that server.
 	 */
-	public int write(ByteBuffer data) throws IOException {
-		return outputStreamThread.write(data);
-	}
-	
-	public boolean isConnected() {
-		return state == RBTPConnectionState.ESTABLISHED;
-	}
-	
-	public boolean isClosed() {
-		return state == RBTPConnectionState.CLOSED;
+	private void saveResumptionTicket(RBTPPacket ackPacket) {
+		ByteBuffer metadata = ackPacket.metadata();
+		if(metadata == null || (resumptionTickets.size() >= MAX_RESUMPTION_TICKETS && !resumptionTickets.containsKey(remoteAddress))) {
+			return;
+		}
+		
+		byte[] ticket = new byte[metadata.capacity()];
+		for(int i = 0; i < ticket.length; i++) {
+			ticket[i] = metadata.get(i);
+		}
+		
+		resumptionTickets.put(remoteAddress, ticket);
 	}
 	
-	public void close() {
-		requestClose = true;
+	/**
+	 * The returned future is completed by the connection's own thread as soon as the handshake is over: with this
+	 * connection once it is established, or exceptionally with an IOException if the handshake failed. Dependent
+	 * actions that don't specify an executor run on the connection's thread and must be short.
+	 *
+	 * @return the future of the handshake
+	 */
+	public CompletableFuture<RBTPConnection> getHandshakeFuture() {
+		return handshake;
 	}
 	
 	/**
-	 * This class handles all data packets being sent to the remote.
+	 * Opens a new stream to the remote. The remote learns of the stream when it receives its first data.
+	 *
+	 * @return the new stream
+	 * @throws IOException if the connection is not established
 	 */
-	private class RBTPOutputStreamThread implements Runnable {
-		private ArrayList<RBTPPacket> lastSent;
-		private LinkedBlockingQueue<RBTPPacket> ackPackets;
-		
-		private final ByteBuffer outputBuffer = ByteBuffer.allocateDirect(8 * 1024 * 1024); // 8MB for now
-		private long windowFirstSequenceNumber = -1, nextSequenceNumber = -1;
-		private int remoteReceiveWindowSize;
+	public synchronized RBTPStream openStream() throws IOException {
+		if(state != RBTPConnectionState.ESTABLISHED || requestClose) {
+			throw new IOException("Connection not established.");
+		}
 		
-		RBTPOutputStreamThread() {
-			lastSent = new ArrayList<>();
-			ackPackets = new LinkedBlockingQueue<>();
+		if(streams.size() >= MAX_STREAMS) {
+			throw new IOException("Too many streams.");
+		}
+		
+		RBTPStream stream = new RBTPStream(this, nextStreamId, RBTPStream.DEFAULT_BUFFER_SIZE);
+		streams.put(nextStreamId, stream);
+		nextStreamId += 2;
+		return stream;
+	}
+	
+	/**
+	 * Returns the next stream opened by the remote.
+	 * During blocking mode, it will wait until the remote opens a stream or closes the connection.
+	 *
+	 * @param block to block or not to block
+	 * @return the new stream, or null if there is none
+	 */
+	public RBTPStream acceptStream(boolean block) {
+		if(block) {
+			awaitStream(true, () -> !incomingStreams.isEmpty());
+		}
+		
+		return incomingStreams.poll();
+	}
+	
+	/**
+	 * Parks the calling thread until the stream condition holds or the connection is closing. Readers also stop
+	 * waiting once the remote end has closed.
+	 */
+	void awaitStream(boolean read, BooleanSupplier condition) {
+		waitLock.lock();
+		try {
+			while(!condition.getAsBoolean() && !(read && finReceived) && !requestClose && !isClosed()) {
+				(read ? readable : writable).awaitUninterruptibly();
+			}
+		}
+		finally {
+			waitLock.unlock();
+		}
+	}
+	
+	/**
+	 * Called by the connection threads once a stream has new data to read, or free space to write.
+	 */
+	void signalStreams(boolean read) {
+		signalWaiters(read ? readable : writable);
+	}
+	
+	private void signalWaiters(Condition condition) {
+		waitLock.lock();
+		try {
+			condition.signalAll();
+		}
+		finally {
+			waitLock.unlock();
+		}
+	}
+	
+	private void startNetworkThreads() {
+		Thread[] threads;
+		if(singleThreaded) {
+			threads = new Thread[] {
+					Threads.startThread("RBTP Connection Thread port: " + bindingInterface.getPort(), new RBTPConnectionThread())
+			};
+		} else {
+			threads = new Thread[] {
+					Threads.startThread("RBTP Output Stream Thread port: " + bindingInterface.getPort(), outputStreamThread),
+					Threads.startThread("RBTP Input Stream Thread port: " + bindingInterface.getPort(), inputStreamThread)
+			};
+		}
+		
+		// Wait for all threads to terminate to unbind this Bindable
+		Threads.startThread("RBTP Connection Joiner Thread port: " + bindingInterface.getPort(), () -> {
+			for(Thread thread : threads) {
+				while(thread.isAlive()) {
+					try {
+						thread.join();
+					}
+					catch(Exception exc) {
+					}
+				}
+			}
+			
+			if(PRINT_DEBUG) {
+				System.out.println("CONNECTION: Unbinding.");
+			}
+			bindingInterface.unbind();
+		});
+	}
+	
+	void setupPacket(RBTPPacket packet, int receiveWindow) {
+		packet.address = remoteAddress;
+		packet.sourcePort(bindingInterface.getPort());
+		packet.destinationPort(remoteAddress.getPort());
+		
+		byte scale = 0;
+		
+		while(receiveWindow > 0xFFFF) {
+			receiveWindow >>>= 1;
+			scale++;
+		}
+		
+		packet.scale(scale);
+		packet.receiveWindow((short)receiveWindow);
+	}
+	
+	/**
+	 * This method reads as much as it can and returns the number of bytes read.
+	 * During blocking mode, it will return once it can read at least the read low-water mark, or as much as fits in
+	 * the buffer if that is less.
+	 *
+	 * @param data  reads data in the remaining space
+	 * @param block to block or not to block
+	 * @return the number of bytes read, or -1 if the remote end closed the connection and all its data was read
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer data, boolean block) throws IOException {
+		return (int)read(new ByteBuffer[] { data }, 0, 1, block);
+	}
+	
+	/**
+	 * Scattering read: fills the buffers in order, moving on to the next buffer only once the previous one is full.
+	 * During blocking mode, it will return once it can read at least the read low-water mark, or as much as fits in
+	 * the buffers if that is less.
+	 *
+	 * In message mode, reads exactly one whole message, and blocks until one has arrived during blocking mode. The
+	 * part of the message that does not fit in the buffers is discarded, see getNextMessageSize.
+	 *
+	 * @param dsts   the buffers to read into
+	 * @param offset the index of the first buffer to read into
+	 * @param length the number of buffers to read into
+	 * @param block  to block or not to block
+	 * @return the number of bytes read, or -1 if the remote end closed the connection and all its data was read
+	 * @throws IOException
+	 */
+	public long read(ByteBuffer[] dsts, int offset, int length, boolean block) throws IOException {
+		if(block) {
+			long remaining = remaining(dsts, offset, length);
+			if(remaining > 0) {
+				awaitReadable((int)Math.min(Math.min(readLowWaterMark, maxBufferSize), remaining));
+			}
+		}
+		
+		return messageMode ? inputStreamThread.readMessage(dsts, offset, length) : inputStreamThread.read(dsts, offset, length);
+	}
+	
+	/**
+	 * @return in message mode, the size of the next message if it has fully arrived, else 0, or -1 if the remote end
+	 * closed the connection and all messages were read
+	 */
+	public int getNextMessageSize() {
+		if(!messageMode) {
+			throw new IllegalStateException("Not in message mode.");
+		}
+		
+		return inputStreamThread.getNextMessageSize();
+	}
+	
+	/**
+	 * This method writes as much as it can and returns the number of bytes written.
+	 * During blocking mode, it will not return until all the data has been written.
+	 *
+	 * @param data  writes data from the remaining space
+	 * @param block to block or not to block
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public int write(ByteBuffer data, boolean block) throws IOException {
+		return (int)write(new ByteBuffer[] { data }, 0, 1, block);
+	}
+	
+	/**
+	 * Gathering write: queues the buffers in order, as one contiguous stream, under a single lock of the write buffer.
+	 * During blocking mode, it will not return until all the data has been written.
+	 *
+	 * In message mode, the buffers make up one message, which is either queued whole or not at all.
+	 *
+	 * @param srcs   the buffers to write from
+	 * @param offset the index of the first buffer to write from
+	 * @param length the number of buffers to write from
+	 * @param block  to block or not to block
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long write(ByteBuffer[] srcs, int offset, int length, boolean block) throws IOException {
+		return write(srcs, offset, length, block, messageMode ? messageLifetime : 0);
+	}
+	
+	/**
+	 * Gathering write of one message with its own lifetime, see setMessageLifetime.
+	 *
+	 * @param srcs     the buffers to write from
+	 * @param offset   the index of the first buffer to write from
+	 * @param length   the number of buffers to write from
+	 * @param block    to block or not to block
+	 * @param lifetime the lifetime of the message in milliseconds, 0 for fully reliable delivery
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long write(ByteBuffer[] srcs, int offset, int length, boolean block, long lifetime) throws IOException {
+		if(lifetime < 0) {
+			throw new IllegalArgumentException("Negative lifetime.");
+		}
+		
+		if(lifetime > 0 && !messageMode) {
+			throw new IllegalStateException("Message lifetimes require message mode.");
+		}
+		
+		long written = 0;
+		
+		while(true) {
+			written += outputStreamThread.write(srcs, offset, length, lifetime);
+			
+			long remaining = remaining(srcs, offset, length);
+			if(!block || remaining == 0) {
+				return written;
+			}
+			
+			// A message needs room for all of it, the OST already checked that it fits in the buffer
+			awaitWritable(messageMode ? (int)remaining : (int)Math.min(Math.min(writeLowWaterMark, maxBufferSize), remaining));
+		}
+	}
+	
+	/**
+	 * Sends count bytes of the file, starting at the specified position, without copying them into the write buffer:
+	 * the file is memory-mapped one buffer-sized region at a time and each packet is a slice of the mapping, so at
+	 * most one region is held in flight. Stops early at the end of the file.
+	 * During blocking mode, it will not return until the whole region has been queued.
+	 *
+	 * @param src      the file to send from
+	 * @param position the position in the file to start from
+	 * @param count    the maximum number of bytes to send
+	 * @param block    to block or not to block
+	 * @return the number of bytes queued
+	 * @throws IOException
+	 */
+	public long transferFrom(FileChannel src, long position, long count, boolean block) throws IOException {
+		if(messageMode) {
+			throw new IllegalStateException("Not supported in message mode.");
+		}
+		
+		count = Math.max(0, Math.min(count, src.size() - position));
+		
+		long transferred = 0;
+		while(transferred < count) {
+			if(requestClose || isClosed()) {
+				throw new IOException("Socket is closed or closing.");
+			}
+			
+			// Only map once all data written before has been sent, which is the only time a region is accepted
+			if(outputStreamThread.bufferedCount == 0) {
+				int size = (int)Math.min(count - transferred, maxBufferSize);
+				if(outputStreamThread.writeMapped(src.map(MapMode.READ_ONLY, position + transferred, size))) {
+					transferred += size;
+					continue;
+				}
+			}
+			
+			if(!block) {
+				break;
+			}
+			
+			awaitWritable(maxBufferSize);
+		}
+		
+		return transferred;
+	}
+	
+	/**
+	 * Writes the received data straight to the file, starting at the specified position, without going through an
+	 * intermediate buffer.
+	 * During blocking mode, it will return once it can write at least the read low-water mark, or count bytes if that
+	 * is less.
+	 *
+	 * @param dst      the file to write to
+	 * @param position the position in the file to start from
+	 * @param count    the maximum number of bytes to write
+	 * @param block    to block or not to block
+	 * @return the number of bytes written, or -1 if the remote end closed the connection and all its data was read
+	 * @throws IOException
+	 */
+	public long transferTo(FileChannel dst, long position, long count, boolean block) throws IOException {
+		if(messageMode) {
+			throw new IllegalStateException("Not supported in message mode.");
+		}
+		
+		if(block && count > 0) {
+			awaitReadable((int)Math.min(Math.min(readLowWaterMark, maxBufferSize), count));
+		}
+		
+		return inputStreamThread.transferTo(dst, position, count);
+	}
+	
+	private static long remaining(ByteBuffer[] buffers, int offset, int length) {
+		long remaining = 0;
+		for(int i = offset; i < offset + length; i++) {
+			remaining += buffers[i].remaining();
+		}
+		return remaining;
+	}
+	
+	/**
+	 * Bulk copies as much as fits from one buffer to the other.
+	 */
+	private static int copy(ByteBuffer src, ByteBuffer dst) {
+		int count = Math.min(src.remaining(), dst.remaining());
+		if(count == src.remaining()) {
+			dst.put(src);
+		} else {
+			int limit = src.limit();
+			src.limit(src.position() + count);
+			dst.put(src);
+			src.limit(limit);
+		}
+		return count;
+	}
+	
+	/**
+	 * This method writes as much as it can and returns the number of bytes written.
+	 *
+	 * @param data writes data from the remaining space
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public int write(ByteBuffer data) throws IOException {
+		return write(data, false);
+	}
+	
+	/**
+	 * Parks the calling thread until the specified number of bytes are available to read, the remote end has closed
+	 * or the connection is closing.
+	 */
+	private void awaitReadable(int lowWaterMark) {
+		waitLock.lock();
+		try {
+			// Published before checking, so that the IST either sees the mark or we see its data
+			readableMark = lowWaterMark;
+			while(!inputStreamThread.hasReadable(lowWaterMark) && !finReceived && !requestClose && !isClosed()) {
+				readable.awaitUninterruptibly();
+			}
+			readableMark = Integer.MAX_VALUE;
+		}
+		finally {
+			waitLock.unlock();
+		}
+	}
+	
+	/**
+	 * Parks the calling thread until the write buffer has the specified amount of free space or the connection is closing.
+	 * While the memory budget keeps the buffer from growing, it waits for as much space as the buffer has instead.
+	 */
+	private void awaitWritable(int lowWaterMark) {
+		waitLock.lock();
+		try {
+			while(true) {
+				int mark = Math.min(lowWaterMark, outputStreamThread.getWriteCapacity());
+				writableMark = mark;
+				if(outputStreamThread.getFreeSpace() >= mark || requestClose || isClosed()) {
+					break;
+				}
+				
+				writable.awaitUninterruptibly();
+			}
+			writableMark = Integer.MAX_VALUE;
+		}
+		finally {
+			waitLock.unlock();
+		}
+	}
+	
+	public boolean isConnected() {
+		return state == RBTPConnectionState.ESTABLISHED;
+	}
+	
+	public boolean isClosed() {
+		return state == RBTPConnectionState.CLOSED;
+	}
+	
+	/**
+	 * @return true if a read would not return 0: data is available, the remote end has closed or the connection is
+	 * closing
+	 */
+	public boolean isReadable() {
+		return handshake.isDone() && (inputStreamThread.hasReadable(1) || finReceived || requestClose || isClosed());
+	}
+	
+	/**
+	 * @return true if a write would not return 0: the write buffer has at least the write low-water mark of free space,
+	 * or the connection is closing
+	 */
+	public boolean isWritable() {
+		return handshake.isDone() && (requestClose || isClosed() ||
+				                              outputStreamThread.getFreeSpace() >= Math.min(writeLowWaterMark, outputStreamThread.getWriteCapacity()));
+	}
+	
+	/**
+	 * Sets the listener that is called whenever this connection may have become readable, writable or connected, or
+	 * has closed. It is called from the connection's own threads, so it must be short and never block. Used by
+	 * selectors to find out which connections need attention.
+	 *
+	 * @param readinessListener the listener, or null to remove it
+	 */
+	public void setReadinessListener(Runnable readinessListener) {
+		this.readinessListener = readinessListener;
+	}
+	
+	private void notifyReadiness() {
+		Runnable readinessListener = this.readinessListener;
+		if(readinessListener != null) {
+			readinessListener.run();
+		}
+	}
+	
+	public void close() {
+		requestClose = true;
+		
+		if(outputStreamThread != null) {
+			outputStreamThread.wakeup.signal();
+		}
+		
+		waitLock.lock();
+		try {
+			readable.signalAll();
+			writable.signalAll();
+		}
+		finally {
+			waitLock.unlock();
+		}
+		
+		notifyReadiness();
+	}
+	
+	/**
+	 * All state changes go through here so that both threads wake up to act on the new state.
+	 */
+	private void setState(RBTPConnectionState state) {
+		this.state = state;
+		
+		outputStreamThread.wakeup.signal();
+		inputStreamThread.wakeup.signal();
+		
+		if(state == RBTPConnectionState.ESTABLISHED) {
+			handshake.complete(this);
+		} else if(state == RBTPConnectionState.CLOSED || state == RBTPConnectionState.TIMED_WAIT) {
+			// does nothing if the handshake already completed
+			handshake.completeExceptionally(new IOException("Handshake failed. state: " + state));
+		}
+		
+		waitLock.lock();
+		try {
+			readable.signalAll();
+			writable.signalAll();
+		}
+		finally {
+			waitLock.unlock();
+		}
+		
+		notifyReadiness();
+	}
+	
+	/**
+	 * The retransmission timeout in milliseconds, computed as in RFC 6298 from the RTT estimate.
+	 */
+	long getRetransmissionTimeout() {
+		if(!rttEstimator.hasSample()) {
+			return TIMEOUT * 2;
+		}
+		
+		long rto = rttEstimator.getSmoothedRTT() + Math.max(4 * rttEstimator.getRTTVariance(), ACK_DELAY * 1000);
+		return Math.max(MIN_RTO, Math.min(MAX_RTO, (rto + 999) / 1000));
+	}
+	
+	long getMaxRetransmissionTimeout() {
+		return MAX_RTO;
+	}
+	
+	/**
+	 * The time without any ACK after which the remote is considered gone.
+	 */
+	long getConnectionTimeout() {
+		return TIMEOUT * TIMEOUT_COUNT_LIMIT;
+	}
+	
+	void addRTTSample(long rtt) {
+		rttEstimator.addSample(rtt);
+	}
+	
+	boolean isClosing() {
+		return requestClose || isClosed();
+	}
+	
+	boolean isFinReceived() {
+		return finReceived;
+	}
+	
+	void sendStreamPacket(RBTPPacket packet) {
+		sendPacket.accept(packet);
+	}
+	
+	/**
+	 * Wakes up the output stream so that it sends the data written to the streams.
+	 */
+	void wakeupOutput() {
+		outputStreamThread.wakeup.signal();
+	}
+	
+	/**
+	 * Has the input stream send the pending stream ACKs and window updates after the usual ACK delay.
+	 */
+	void requestStreamAck() {
+		inputStreamThread.ackTimer.schedule(ACK_DELAY);
+	}
+	
+	/**
+	 * Closes the connection right away, without the FIN exchange.
+	 */
+	void abort() {
+		setState(RBTPConnectionState.CLOSED);
+	}
+	
+	/**
+	 * Runs both the input and output streams on a single thread, used in single-threaded mode. Each pass first handles
+	 * all received packets, processing ACKs right away, then sends whatever the newly opened window allows.
+	 */
+	private class RBTPConnectionThread implements Runnable {
+		@Override
+		public void run() {
+			while(true) {
+				if(state == RBTPConnectionState.CLOSED) {
+					if(PRINT_DEBUG) {
+						System.out.println("CONNECTION: Closed, ConnectionThread exiting.");
+					}
+					
+					inputStreamThread.shutdown();
+					outputStreamThread.shutdown();
+					break;
+				}
+				
+				try {
+					inputStreamThread.processEvents();
+				}
+				catch(Exception exc) {
+					exc.printStackTrace();
+					setState(RBTPConnectionState.CLOSED);
+				}
+				
+				if(state != RBTPConnectionState.CLOSED) {
+					try {
+						outputStreamThread.processEvents();
+					}
+					catch(Exception exc) {
+						exc.printStackTrace();
+					}
+				}
+				
+				if(state != RBTPConnectionState.CLOSED) {
+					inputStreamThread.wakeup.await();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * This class handles all data packets being sent to the remote.
+	 */
+	private class RBTPOutputStreamThread implements Runnable {
+		private ArrayList<RBTPPacket> lastSent;
+		private SPSCRing<RBTPPacket> ackPackets; // IST -> OST
+		
+		private final StreamBuffer outputBuffer = new StreamBuffer(maxBufferSize);
+		private ByteBuffer mappedData; // file data queued by transferFrom, sent before anything in the outputBuffer
+		private volatile int bufferedCount; // bytes in the outputBuffer and mappedData that are not yet sent
+		private volatile int writeLimit = Integer.MAX_VALUE; // the outputBuffer's capacity while the memory budget stops it from growing
+		
+		// In message mode, the stream offsets at which each message queued in the outputBuffer ends, and when it expires
+		private final ArrayDeque<Long> messageEnds = new ArrayDeque<>();
+		private final ArrayDeque<Long> messageDeadlines = new ArrayDeque<>();
+		private long writtenTotal, packetizedTotal;
+		private boolean messagePartlySent; // the first message in the outputBuffer was partly packetized
+		private long messageEndSequenceNumber; // the sequence number right after the message being packetized
+		private long windowFirstSequenceNumber = -1;
+		private volatile long nextSequenceNumber = -1; // also read by the IST and writing threads
+		private volatile int remoteReceiveWindowSize;
+		
+		// Held while sending or handling ACKs and timers, since with inlineTransmit a writing thread may also send
+		private final ReentrantLock sendLock = new ReentrantLock();
+		
+		private final WakeupSignal wakeup;
+		private final TimingWheel.Timer retransmitTimer;
+		private final TimingWheel.Timer bufferIdleTimer;
+		private long retransmitTimeout;
+		private long lastAckTime;
+		
+		RBTPOutputStreamThread(WakeupSignal wakeup) {
+			lastSent = new ArrayList<>();
+			ackPackets = new SPSCRing<>(ACK_QUEUE_SIZE);
+			
+			this.wakeup = wakeup;
+			retransmitTimer = TimingWheel.getInstance().newTimer(wakeup::signal);
+			bufferIdleTimer = TimingWheel.getInstance().newTimer(wakeup::signal);
 		}
 		
 		public void init(int remoteReceiveWindowSize, long lastSequenceNum) {
@@ -278,762 +1256,1712 @@ public class RBTPConnection implements Bindable {
 				throw new IllegalStateException("OutputStreamThread already initialized.");
 			}
 			
-			this.remoteReceiveWindowSize = remoteReceiveWindowSize;
-			this.windowFirstSequenceNumber = lastSequenceNum;
-			this.nextSequenceNumber = lastSequenceNum;
-		}
-		
-		public long getNextSequenceNumber() {
-			return nextSequenceNumber;
-		}
-		
-		public void acceptAck(RBTPPacket packet) {
-			ackPackets.offer(packet);
+			this.remoteReceiveWindowSize = remoteReceiveWindowSize;
+			this.windowFirstSequenceNumber = lastSequenceNum;
+			this.nextSequenceNumber = lastSequenceNum;
+		}
+		
+		public long getNextSequenceNumber() {
+			return nextSequenceNumber;
+		}
+		
+		public void acceptAck(RBTPPacket packet) {
+			// When the OST falls behind, the IST waits here and stops reading packets, which in turn fills the packetsQueue
+			while(!ackPackets.offer(packet)) {
+				wakeup.signal();
+				Thread.yield();
+				
+				if(state == RBTPConnectionState.CLOSED) {
+					packet.destroy();
+					return;
+				}
+			}
+			
+			wakeup.signal();
+		}
+		
+		private void resendAll() {
+			for(RBTPPacket packet : lastSent) {
+				packet.retransmitted = true;
+				sendPacket.accept(packet);
+			}
+		}
+		
+		/**
+		 * Write as much data from the buffers as can fit in the outputBuffer
+		 */
+		public long write(ByteBuffer[] srcs, int offset, int length, long lifetime) throws IOException {
+			if(nextSequenceNumber == -1) {
+				throw new IllegalStateException("OutputStreamThread not initialized.");
+			}
+			
+			if(requestClose || isClosed()) {
+				throw new IOException("Socket is closed or closing.");
+			}
+			
+			long writeCount = 0;
+			long remaining = remaining(srcs, offset, length);
+			
+			if(messageMode && remaining > outputBuffer.maxCapacity()) {
+				throw new IOException("Message larger than the buffer size: " + remaining);
+			}
+			
+			synchronized(outputBuffer) {
+				// A message can only be queued whole, so it may take the buffer past the memory budget once nothing else is queued
+				boolean grown = outputBuffer.ensureCapacity((int)Math.min(outputBuffer.maxCapacity(), outputBuffer.buffer().position() + remaining), messageMode && outputBuffer.buffer().position() == 0);
+				writeLimit = grown ? Integer.MAX_VALUE : outputBuffer.capacity();
+				
+				ByteBuffer buffer = outputBuffer.buffer();
+				if(messageMode && buffer.remaining() < remaining) {
+					return 0; // messages are only queued whole
+				}
+				
+				for(int i = offset; i < offset + length && buffer.hasRemaining(); i++) {
+					writeCount += copy(srcs[i], buffer);
+				}
+				
+				if(messageMode && writeCount > 0) {
+					writtenTotal += writeCount;
+					messageEnds.add(writtenTotal);
+					messageDeadlines.add(lifetime > 0 ? System.currentTimeMillis() + lifetime : -1);
+				}
+				
+				updateBufferedCount();
+			}
+			
+			if(writeCount > 0) {
+				if(inlineTransmit) {
+					transmitInline();
+				} else {
+					wakeup.signal();
+				}
+			}
+			
+			return writeCount;
+		}
+		
+		/**
+		 * Sends the written data on the calling thread if the remote receive window is open and the OST is not busy.
+		 * Otherwise the OST sends it as usual: if it is busy, it checks the outputBuffer before waiting again.
+		 */
+		private void transmitInline() {
+			if(remoteReceiveWindowSize > 0 && sendLock.tryLock()) {
+				try {
+					transmit();
+				}
+				finally {
+					sendLock.unlock();
+				}
+			} else {
+				wakeup.signal();
+			}
+		}
+		
+		/**
+		 * Queues a memory-mapped file region to be sent as is: packets are slices of it, so it is never copied into the
+		 * outputBuffer. Only accepted once everything written before it has been sent, to keep the stream in order.
+		 *
+		 * @return false if the data written before has not all been sent yet
+		 */
+		public boolean writeMapped(ByteBuffer data) throws IOException {
+			if(nextSequenceNumber == -1) {
+				throw new IllegalStateException("OutputStreamThread not initialized.");
+			}
+			
+			if(requestClose || isClosed()) {
+				throw new IOException("Socket is closed or closing.");
+			}
+			
+			synchronized(outputBuffer) {
+				if(mappedData != null || outputBuffer.buffer().position() > 0) {
+					return false;
+				}
+				
+				mappedData = data;
+				updateBufferedCount();
+			}
+			
+			wakeup.signal();
+			return true;
+		}
+		
+		private void updateBufferedCount() {
+			bufferedCount = outputBuffer.buffer().position() + (mappedData == null ? 0 : mappedData.remaining());
+			
+			// Once drained, the next write tries to grow the buffer again
+			if(bufferedCount == 0) {
+				writeLimit = Integer.MAX_VALUE;
+			}
+		}
+		
+		/**
+		 * @return the space writers can fill: up to the maximum buffer size, or only the current capacity while the
+		 * memory budget stops the buffer from growing
+		 */
+		int getFreeSpace() {
+			return getWriteCapacity() - bufferedCount;
+		}
+		
+		/**
+		 * @return the most free space there can be until the buffer drains and may grow again
+		 */
+		int getWriteCapacity() {
+			return Math.min(maxBufferSize, writeLimit);
+		}
+		
+		/**
+		 * Sends the payload as the next data packet and keeps it until it is ACK-ed.
+		 */
+		private RBTPPacket sendData(ByteBuffer payload, boolean pooled, boolean endOfMessage) {
+			RBTPPacket packet = new RBTPPacket();
+			setupPacket(packet, maxWindowSize);
+			packet.sequenceNumber((int)nextSequenceNumber);
+			packet.payload(payload, pooled);
+			packet.eom(endOfMessage);
+			
+			packet.sendTime = System.nanoTime();
+			sendPacket.accept(packet);
+			lastSent.add(packet);
+			
+			nextSequenceNumber = (nextSequenceNumber + payload.capacity()) & 0xFFFFFFFFL; // limit to 32-bit
+			
+			return packet;
+		}
+		
+		/**
+		 * Packetizes as much of the outputBuffer as the remote receive window allows, or sends the FIN packet once
+		 * everything has been sent and ACK-ed and a close was requested.
+		 */
+		private void transmit() {
+			boolean spaceFreed = false;
+			
+			synchronized(outputBuffer) {
+				ByteBuffer outputBuffer = this.outputBuffer.buffer();
+				
+				if(outputBuffer.position() > 0 || mappedData != null) {
+					if(remoteReceiveWindowSize > 0) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (OST): Sending data, buffer pos: " + outputBuffer.position());
+						}
+						
+						if(lastSent.isEmpty()) {
+							lastAckTime = System.currentTimeMillis();
+						}
+						
+						// Mapped file data was queued before anything now in the outputBuffer, so it goes first
+						if(mappedData != null) {
+							int remaining = Math.min(mappedData.remaining(), remoteReceiveWindowSize);
+							remoteReceiveWindowSize -= remaining;
+							
+							while(remaining > 0) {
+								int payloadSize = Math.min(remaining, MAX_PACKET_SIZE);
+								
+								// A slice whose capacity is exactly the payload size, as the packet encoding expects
+								ByteBuffer payload = mappedData.duplicate();
+								payload.limit(payload.position() + payloadSize);
+								payload = payload.slice();
+								mappedData.position(mappedData.position() + payloadSize);
+								
+								sendData(payload, false, false);
+								remaining -= payloadSize;
+							}
+							
+							if(!mappedData.hasRemaining()) {
+								mappedData = null;
+							}
+						}
+						
+						if(mappedData == null && outputBuffer.position() > 0) {
+							int prevPosition = outputBuffer.position();
+							
+							outputBuffer.flip();
+							
+							// Packetize the outputBuffer up to the smaller of data left to write and the remote receive window size.
+							while(outputBuffer.position() < prevPosition && remoteReceiveWindowSize > 0) {
+								// A message that expired before any of it was sent is dropped whole
+								if(messageMode && !messagePartlySent && isExpired(messageDeadlines.peek())) {
+									int size = (int)(messageEnds.poll() - packetizedTotal);
+									messageDeadlines.poll();
+									outputBuffer.limit(prevPosition).position(outputBuffer.position() + size);
+									packetizedTotal += size;
+									continue;
+								}
+								
+								int payloadSize = Math.min(Math.min(prevPosition - outputBuffer.position(), remoteReceiveWindowSize), MAX_PACKET_SIZE);
+								
+								// In message mode, packets never span two messages so that the EOM flag marks the exact end
+								boolean endOfMessage = false;
+								long deadline = -1;
+								if(messageMode) {
+									if(!messagePartlySent) {
+										messageEndSequenceNumber = (nextSequenceNumber + messageEnds.peek() - packetizedTotal) & 0xFFFFFFFFL;
+									}
+									
+									deadline = messageDeadlines.peek();
+									if(messageEnds.peek() - packetizedTotal <= payloadSize) {
+										payloadSize = (int)(messageEnds.poll() - packetizedTotal);
+										messageDeadlines.poll();
+										endOfMessage = true;
+									}
+									
+									messagePartlySent = !endOfMessage;
+								}
+								
+								outputBuffer.limit(outputBuffer.position() + payloadSize);
+								
+								ByteBuffer payload = BufferPool.getBuffer(payloadSize);
+								payload.put(outputBuffer);
+								payload.flip();
+								
+								RBTPPacket packet = sendData(payload, true, endOfMessage);
+								packet.deadline = deadline;
+								packet.messageEnd = messageEndSequenceNumber;
+								
+								remoteReceiveWindowSize -= payloadSize;
+								packetizedTotal += payloadSize;
+							}
+							
+							outputBuffer.limit(prevPosition);
+							outputBuffer.compact();
+						}
+						
+						updateBufferedCount();
+						if(getFreeSpace() >= writableMark) {
+							signalWaiters(writable);
+						}
+						
+						spaceFreed = getFreeSpace() >= Math.min(writeLowWaterMark, getWriteCapacity());
+					}
+				} else if(lastSent.size() == 0 && requestClose && (state == RBTPConnectionState.ESTABLISHED || state == RBTPConnectionState.CLOSE_WAIT) &&
+						          streamsFlushed()) {
+					// If all packets are ACK-ed and there is no more data to send, honor requestClose and send the FIN packet
+					
+					RBTPPacket finPacket = new RBTPPacket();
+					setupPacket(finPacket, maxWindowSize);
+					finPacket.sequenceNumber((int)nextSequenceNumber);
+					finPacket.fin(true);
+					finPacket.sendTime = System.nanoTime();
+					sendPacket.accept(finPacket);
+					lastSent.add(finPacket);
+					lastAckTime = System.currentTimeMillis();
+					
+					if(state == RBTPConnectionState.ESTABLISHED) {
+						setState(RBTPConnectionState.FIN_WAIT_1);
+					} else if(state == RBTPConnectionState.CLOSE_WAIT) {
+						setState(RBTPConnectionState.LAST_ACK);
+					}
+					
+					if(PRINT_DEBUG) {
+						System.out.println("CONNECTION (OST): Close requested, sent FIN. seq: " + nextSequenceNumber + ", state: " + state);
+					}
+				}
+				
+				if(this.outputBuffer.isShrinkable() && !bufferIdleTimer.isScheduled()) {
+					bufferIdleTimer.schedule(BUFFER_IDLE_TIME);
+				}
+			}
+			
+			// Outside of the lock, since listeners may write more data
+			if(spaceFreed) {
+				notifyReadiness();
+			}
+			
+			if(lastSent.size() > 0 && !retransmitTimer.isScheduled()) {
+				retransmitTimeout = getRetransmissionTimeout();
+				retransmitTimer.schedule(retransmitTimeout);
+			}
+		}
+		
+		private boolean isExpired(long deadline) {
+			return deadline != -1 && deadline <= System.currentTimeMillis();
+		}
+		
+		/**
+		 * Partial reliability: gives up on the messages at the start of the unACK-ed packets whose lifetime expired,
+		 * and sends a FWD packet telling the remote to skip past them. Only messages at the start are abandoned, so
+		 * the remote can skip to a single point, and always whole, so the remote never delivers part of a message.
+		 */
+		private void abandonExpired() {
+			RBTPPacket abandoned = null;
+			boolean blocked = false;
+			
+			for(int i = 0; i < lastSent.size(); ) {
+				RBTPPacket packet = lastSent.get(i);
+				
+				if(packet.fwd()) {
+					i++;
+					continue;
+				}
+				
+				if(!isExpired(packet.deadline)) {
+					blocked = true;
+					break;
+				}
+				
+				lastSent.remove(i);
+				
+				if(abandoned != null) {
+					abandoned.destroy();
+				}
+				abandoned = packet;
+			}
+			
+			long forwardSequenceNumber;
+			
+			if(!blocked && messagePartlySent && isExpired(messageDeadlines.peek())) {
+				// The rest of the message was never sent, so it is dropped. Its sequence numbers are skipped anyway, so
+				// that the next message cannot arrive in order right after the part that was sent before the FWD does.
+				synchronized(outputBuffer) {
+					ByteBuffer buffer = outputBuffer.buffer();
+					int size = (int)(messageEnds.poll() - packetizedTotal);
+					messageDeadlines.poll();
+					
+					buffer.flip();
+					buffer.position(size);
+					buffer.compact();
+					
+					packetizedTotal += size;
+					updateBufferedCount();
+				}
+				
+				messagePartlySent = false;
+				nextSequenceNumber = messageEndSequenceNumber;
+				forwardSequenceNumber = messageEndSequenceNumber;
+				
+				if(getFreeSpace() >= writableMark) {
+					signalWaiters(writable);
+				}
+			} else if(abandoned != null) {
+				forwardSequenceNumber = abandoned.messageEnd;
+			} else {
+				return;
+			}
+			
+			if(abandoned != null) {
+				abandoned.destroy();
+			}
+			
+			// The new FWD packet replaces any previous one
+			for(int i = 0; i < lastSent.size(); ) {
+				if(lastSent.get(i).fwd()) {
+					lastSent.remove(i).destroy();
+				} else {
+					i++;
+				}
+			}
+			
+			RBTPPacket fwdPacket = new RBTPPacket();
+			setupPacket(fwdPacket, maxWindowSize);
+			fwdPacket.sequenceNumber((int)forwardSequenceNumber);
+			fwdPacket.fwd(true);
+			fwdPacket.sendTime = System.nanoTime();
+			sendPacket.accept(fwdPacket);
+			lastSent.add(fwdPacket);
+			
+			if(PRINT_DEBUG) {
+				System.out.println("CONNECTION (OST): Abandoned expired messages, sent FWD. seq: " + forwardSequenceNumber);
+			}
+		}
+		
+		/**
+		 * The FIN ends all streams, so it waits for the data written to them to be ACK-ed first.
+		 */
+		private boolean streamsFlushed() {
+			for(RBTPStream stream : streams.values()) {
+				if(!stream.isFlushed()) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Removes all ACK-ed packets from the list of unACK-ed packets.
+		 */
+		private void processAck(RBTPPacket packet) {
+			// Called directly by the IST in single-threaded mode
+			sendLock.lock();
+			try {
+				processAckLocked(packet);
+			}
+			finally {
+				sendLock.unlock();
+			}
+		}
+		
+		private void processAckLocked(RBTPPacket packet) {
+			if(packet.metadata() == null) {
+				if(PRINT_DEBUG) {
+					System.out.println("CONNECTION (OST): no metadata ack? " + packet.ack() + ", seq: " + packet.sequenceNumber());
+				}
+				
+				packet.destroy();
+				return;
+			}
+			
+			if(packet.stm()) {
+				RBTPStream stream = streams.get(packet.metadata().getInt(0));
+				if(stream != null) {
+					stream.processAck(packet);
+				}
+				
+				packet.destroy();
+				return;
+			}
+			
+			remoteReceiveWindowSize = packet.receiveWindow() << packet.scale();
+			
+			boolean progress = false;
+			
+			// Go through each ACK and remove relevant ones
+			for(int i = 0; i < packet.metadata().capacity(); i += 4) {
+				long ack = (long)packet.metadata().getInt(i) & 0xFFFFFFFFL;
+				
+				if(PRINT_DEBUG) {
+					System.out.println("CONNECTION (OST): Received ACK on " + ack + //", relativeLoc: " + relativeLoc +
+							                   ", windowFirstSeqNum: " + windowFirstSequenceNumber + ", nextSeqNum: " + nextSequenceNumber);
+				}
+				
+				boolean found = false;
+				
+				for(int j = 0; j < lastSent.size(); j++) {
+					// A FWD packet is only ACK-ed by a FWD ACK, since the next data packet has the same sequence number
+					if(lastSent.get(j).sequenceNumber() == ack && lastSent.get(j).fwd() == packet.fwd()) {
+						found = true;
+						progress = true;
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (OST): Successfully ACK-ed seq " + ack);
+						}
+						
+						RBTPPacket removedPacket = lastSent.remove(j);
+						
+						// Karn's algorithm: only measure the RTT of packets that were sent once
+						if(!removedPacket.retransmitted && removedPacket.sendTime != -1) {
+							rttEstimator.addSample((System.nanoTime() - removedPacket.sendTime) / 1000);
+						}
+						
+						if(removedPacket.fin()) {
+							if(state == RBTPConnectionState.FIN_WAIT_1) {
+								setState(RBTPConnectionState.FIN_WAIT_2);
+							} else if(state == RBTPConnectionState.CLOSING) {
+								setState(RBTPConnectionState.TIMED_WAIT);
+							} else if(state == RBTPConnectionState.LAST_ACK) {
+								setState(RBTPConnectionState.TIMED_WAIT);
+							}
+							
+							if(PRINT_DEBUG) {
+								System.out.println("CONNECTION (OST): Received ACK for FIN. Output stream is done! state: " + state);
+							}
+						}
+						removedPacket.destroy();
+						break;
+					}
+				}
+				
+				if(!found) {
+					if(PRINT_DEBUG) {
+						System.out.println("CONNECTION (OST): Already acked: " + ack);
+					}
+				}
+			}
+			
+			// Restart the retransmission timer whenever new data is ACK-ed
+			if(progress) {
+				lastAckTime = System.currentTimeMillis();
+				
+				if(lastSent.size() > 0) {
+					retransmitTimeout = getRetransmissionTimeout();
+					retransmitTimer.schedule(retransmitTimeout);
+				} else {
+					retransmitTimer.cancel();
+				}
+			}
+			
+			packet.destroy();
+		}
+		
+		/**
+		 * Retransmission timeout: resends all un-ACK-ed packets and backs off the timer.
+		 */
+		private void onRetransmitTimeout() {
+			if(lastSent.isEmpty()) {
+				return;
+			}
+			
+			if(System.currentTimeMillis() - lastAckTime >= TIMEOUT * TIMEOUT_COUNT_LIMIT) {
+				if(PRINT_DEBUG) {
+					System.out.println("CONNECTION (OST): Consecutive timeout count limit reached. Closing...");
+				}
+				
+				setState(RBTPConnectionState.CLOSED);
+				return;
+			}
+			
+			if(PRINT_DEBUG) {
+				System.out.println("CONNECTION (OST): Timeout! Resending " + lastSent.size() + " packets.");
+			}
+			
+			resendAll();
+			
+			retransmitTimeout = Math.min(retransmitTimeout * 2, MAX_RTO);
+			retransmitTimer.schedule(retransmitTimeout);
+		}
+		
+		private void onBufferIdleTimeout() {
+			synchronized(outputBuffer) {
+				if(outputBuffer.shrinkIfIdle(outputBuffer.buffer().position(), BUFFER_IDLE_TIME)) {
+					if(PRINT_DEBUG) {
+						System.out.println("CONNECTION (OST): Idle, shrunk output buffer.");
+					}
+				} else if(outputBuffer.isShrinkable()) {
+					bufferIdleTimer.schedule(BUFFER_IDLE_TIME);
+				}
+			}
+		}
+		
+		/**
+		 * Handles the queued ACKs and expired timers, then sends as much data as it can.
+		 */
+		private void processEvents() {
+			sendLock.lock();
+			try {
+				ackPackets.drain(this::processAckLocked);
+				
+				if(messageMode) {
+					abandonExpired();
+				}
+				
+				if(retransmitTimer.checkExpired()) {
+					onRetransmitTimeout();
+				}
+				
+				transmit();
+				
+				for(RBTPStream stream : streams.values()) {
+					stream.processEvents();
+				}
+				
+				if(bufferIdleTimer.checkExpired()) {
+					onBufferIdleTimeout();
+				}
+			}
+			finally {
+				sendLock.unlock();
+			}
+		}
+		
+		private void shutdown() {
+			retransmitTimer.cancel();
+			bufferIdleTimer.cancel();
+			
+			synchronized(outputBuffer) {
+				outputBuffer.release();
+			}
+			
+			for(RBTPStream stream : streams.values()) {
+				stream.shutdown();
+			}
+		}
+		
+		/**
+		 * Sleeps until ACKs are received, data is written or a timer expires.
+		 */
+		@Override
+		public void run() {
+			while(true) {
+				if(state == RBTPConnectionState.CLOSED) {
+					if(PRINT_DEBUG) {
+						System.out.println("CONNECTION (OST): Closed, OutputStreamThread exiting.");
+					}
+					
+					shutdown();
+					break;
+				}
+				
+				try {
+					processEvents();
+				}
+				catch(Exception exc) {
+					exc.printStackTrace();
+				}
+				
+				if(state != RBTPConnectionState.CLOSED) {
+					wakeup.await();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * This class is the master of the RBTPConnection. It reads all packets and feeds ACKs to the OutputStreamThread.
+	 */
+	private class RBTPInputStreamThread implements Runnable, Consumer<RBTPPacket> {
+		private RBTPPacket synFinLastPacket;
+		private SPSCRing<RBTPPacket> packetsQueue; // NetworkManager thread -> IST
+		
+		private ArrayList<RBTPPacket> packetsReceived;
+		private HashMap<Long, Integer> currSequenceNumbers;
+		
+		private final StreamBuffer readBuffer = new StreamBuffer(maxBufferSize);
+		private long readBufferSequenceNum;
+		private volatile int windowStartOffset = 0;
+		
+		// In message mode: EOM packets not yet in order, and the sequence numbers at which each in-order message ends
+		private final HashSet<Long> endOfMessagePackets = new HashSet<>();
+		private final ArrayDeque<Long> messageEnds = new ArrayDeque<>();
+		private final HashSet<Long> abandonedMessageEnds = new HashSet<>(); // the messageEnds of data skipped by a FWD
+		private volatile int messageCount;
+		private long forwardSequenceNumber = -1; // the last FWD received, applied with the next ACK
+		
+		private long totalDataReceived = 0;
+		private long totalDataDelivered = 0;
+		
+		private long tuneStartTime = -1, tuneStartDelivered;
+		private long receiverRTT = -1, receiverRTTStartTime = -1, receiverRTTTarget;
+		
+		private final WakeupSignal wakeup = new WakeupSignal();
+		private final TimingWheel.Timer ackTimer = TimingWheel.getInstance().newTimer(wakeup::signal);
+		private final TimingWheel.Timer handshakeTimer = TimingWheel.getInstance().newTimer(wakeup::signal);
+		private final TimingWheel.Timer bufferIdleTimer = TimingWheel.getInstance().newTimer(wakeup::signal);
+		private boolean ackPending;
+		private int retryCount;
+		
+		RBTPInputStreamThread() {
+			packetsQueue = new SPSCRing<>(PACKET_QUEUE_SIZE);
+			packetsReceived = new ArrayList<>();
+			currSequenceNumbers = new HashMap<>();
+		}
+		
+		@Override
+		public void accept(RBTPPacket packet) {
+			totalPackets++;
+			
+			// Never block the NetworkManager thread: like a full socket buffer, drop the packet and let the remote resend it
+			if(!packetsQueue.offer(packet)) {
+				droppedCount++;
+				if(PRINT_DEBUG) {
+					System.out.println("CONNECTION: Packet queue full, dropped packet seq: " + packet.sequenceNumber());
+				}
+				
+				packet.destroy();
+			}
+			
+			wakeup.signal();
+		}
+		
+		public void init(RBTPPacket initPacket) {
+			this.synFinLastPacket = initPacket;
+			handshakeTimer.schedule(TIMEOUT);
+		}
+		
+		public void initResumed(RBTPPacket ackPacket, long readBufferSequenceNum) {
+			this.synFinLastPacket = ackPacket;
+			this.readBufferSequenceNum = readBufferSequenceNum;
+		}
+		
+		private RBTPPacket calculateChallenge(RBTPPacket packet) {
+			long randNumber = 0;
+			for(int i = 0; i < 7; i++) {
+				randNumber |= ((long)packet.metadata().get(i) & 0xFF) << ((6 - i) * 8);
+			}
+			
+			byte n = packet.metadata().get(7);
+			
+			if(PRINT_DEBUG) {
+				System.out.println("CONNECTION (IST): Received SYN-CHA response! RandNum: " + randNumber);
+			}
+			
+			RBTPPacket challengeResponse = new RBTPPacket();
+			setupPacket(challengeResponse, maxWindowSize);
+			challengeResponse.sequenceNumber((int)(synFinLastPacket.sequenceNumber() + 1));
+			challengeResponse.cha(true);
+			challengeResponse.ack(true);
+			challengeResponse.msg(messageMode); // the server kept no state, so it learns the outcome of message mode here
+			
+			if(initialData != null) {
+				challengeResponse.payload(initialData);
+				challengeResponse.eom(messageMode);
+				initialData = null;
+			}
+			
+			ByteBuffer metadata = BufferPool.getBuffer(8);
+			challengeResponse.metadata(metadata);
+			for(int i = 0; i < 7; i++) {
+				metadata.put(i, (byte)(randNumber >>> ((6 - i) * 8)));
+			}
+			metadata.put(7, n);
+			
+			// Counts up from the received random number until the header starts with the required number of zeroes
+			long time = System.nanoTime();
+			randNumber = ChallengeSolver.solve(challengeResponse, n & 0xFF);
+			for(int i = 0; i < 7; i++) {
+				metadata.put(i, (byte)(randNumber >>> ((6 - i) * 8)));
+			}
+			
+			if(PRINT_DEBUG) {
+				System.out.println("CONNECTION (IST): Calculate challenge took " + (System.nanoTime() - time) / 1000000 + " ms. New RandNum: " + randNumber);
+			}
+			
+			return challengeResponse;
+		}
+		
+		/**
+		 * Main read method: fills the buffers in order as much as it can and returns the number of bytes read, or -1
+		 * once all data before the remote FIN has been read.
+		 */
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			if(windowStartOffset == 0 || remaining(dsts, offset, length) == 0) {
+				return nothingToRead();
+			}
+			
+			synchronized(readBuffer) {
+				readBuffer.touch();
+				
+				ByteBuffer readBuffer = this.readBuffer.buffer();
+				readBuffer.clear().limit(windowStartOffset);
+				int readCount = 0;
+				for(int i = offset; i < offset + length && readBuffer.hasRemaining(); i++) {
+					readCount += copy(readBuffer, dsts[i]);
+				}
+				
+				consumed(readBuffer);
+				return readCount;
+			}
+		}
+		
+		/**
+		 * Writes the in-order data straight from the readBuffer to the file at the specified position and returns the
+		 * number of bytes written, or -1 once all data before the remote FIN has been read.
+		 */
+		public long transferTo(FileChannel dst, long position, long count) throws IOException {
+			if(windowStartOffset == 0 || count == 0) {
+				return nothingToRead();
+			}
+			
+			synchronized(readBuffer) {
+				readBuffer.touch();
+				
+				ByteBuffer readBuffer = this.readBuffer.buffer();
+				readBuffer.clear().limit((int)Math.min(windowStartOffset, count));
+				
+				try {
+					return dst.write(readBuffer, position);
+				}
+				finally {
+					consumed(readBuffer); // whatever was written before a failure is gone from the stream
+				}
+			}
+		}
+		
+		/**
+		 * Reads exactly one message, discarding the part that does not fit in the buffers.
+		 */
+		public long readMessage(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			if(messageCount == 0 || remaining(dsts, offset, length) == 0) {
+				return nothingToRead();
+			}
+			
+			synchronized(readBuffer) {
+				readBuffer.touch();
+				
+				int size = (int)(messageEnds.poll() - readBufferSequenceNum);
+				messageCount--;
+				
+				ByteBuffer readBuffer = this.readBuffer.buffer();
+				readBuffer.clear().limit(size);
+				int readCount = 0;
+				for(int i = offset; i < offset + length && readBuffer.hasRemaining(); i++) {
+					readCount += copy(readBuffer, dsts[i]);
+				}
+				
+				readBuffer.position(size);
+				consumed(readBuffer);
+				skipAbandoned();
+				return readCount;
+			}
+		}
+		
+		public int getNextMessageSize() {
+			synchronized(readBuffer) {
+				if(messageCount > 0) {
+					return (int)(messageEnds.peek() - readBufferSequenceNum);
+				}
+				
+				return windowStartOffset == 0 && finReceived ? -1 : 0;
+			}
+		}
+		
+		/**
+		 * @return whether a read would return data: at least lowWaterMark bytes are available, or in message mode, a
+		 * whole message has arrived
+		 */
+		boolean hasReadable(int lowWaterMark) {
+			return messageMode ? messageCount > 0 : windowStartOffset >= lowWaterMark;
+		}
+		
+		private int nothingToRead() throws IOException {
+			if(windowStartOffset == 0 && finReceived) {
+				return -1;
+			}
+			
+			if(requestClose || isClosed()) {
+				throw new IOException("Socket is closing or closed.");
+			}
+			
+			return 0;
+		}
+		
+		/**
+		 * Removes the data before the readBuffer's position from the stream. Must hold the readBuffer lock.
+		 */
+		private void consumed(ByteBuffer readBuffer) {
+			int count = readBuffer.position();
+			
+			readBuffer.limit(readBuffer.capacity());
+			readBuffer.compact();
+			
+			windowStartOffset -= count;
+			readBufferSequenceNum += count;
+		}
+		
+		/**
+		 * Drops the abandoned messages at the start of the readBuffer. Must hold the readBuffer lock.
+		 */
+		private void skipAbandoned() {
+			while(!messageEnds.isEmpty() && abandonedMessageEnds.remove(messageEnds.peek())) {
+				ByteBuffer readBuffer = this.readBuffer.buffer();
+				readBuffer.clear().position((int)(messageEnds.poll() - readBufferSequenceNum));
+				consumed(readBuffer);
+			}
+		}
+		
+		/**
+		 * Makes the data the client sent with the ACK-CHA readable. It is the first data of the connection, so it is
+		 * always in order, and our ACK to the ACK-CHA acknowledges it.
+		 */
+		private void receiveInitialData(RBTPPacket packet) {
+			int length = packet.payload().capacity();
+			
+			synchronized(readBuffer) {
+				readBuffer.ensureCapacity(length, true); // always fits, the buffer can hold at least a packet
+				
+				for(int i = 0; i < length; i++) {
+					readBuffer.buffer().put(i, packet.payload().get(i));
+				}
+				
+				windowStartOffset += length;
+				totalDataReceived += length;
+				totalDataDelivered += length;
+				
+				if(messageMode && packet.eom()) {
+					messageEnds.add(readBufferSequenceNum + windowStartOffset);
+					messageCount++;
+				}
+			}
+			
+			if(PRINT_DEBUG) {
+				System.out.println("CONNECTION (IST): Received " + length + " bytes of initial data with the ACK-CHA.");
+			}
+			
+			signalWaiters(readable);
+			notifyReadiness();
+		}
+		
+		/**
+		 * Moves the received packets that are now in order into the readable part of the readBuffer. Must hold the
+		 * readBuffer lock.
+		 */
+		private void deliverInOrder() {
+			while(currSequenceNumbers.containsKey(readBufferSequenceNum + windowStartOffset)) {
+				long index = readBufferSequenceNum + windowStartOffset;
+				int length = currSequenceNumbers.remove(index);
+				windowStartOffset += length;
+				totalDataDelivered += length;
+				
+				if(messageMode && endOfMessagePackets.remove(index)) {
+					messageEnds.add(readBufferSequenceNum + windowStartOffset);
+					messageCount++;
+				}
+			}
+		}
+		
+		/**
+		 * Applies a FWD: the sender abandoned everything before the sequence number that is not ACK-ed, which always
+		 * ends on a message boundary. The data since the last whole message is dropped as one abandoned message, and
+		 * the messages received after it become readable. Must hold the readBuffer lock.
+		 *
+		 * @return false if the sequence number is outside of the readBuffer, in which case the FWD is not ACK-ed
+		 */
+		private boolean forward(long sequenceNumber) {
+			int relativeLoc = (int)(sequenceNumber - readBufferSequenceNum);
+			if(relativeLoc <= windowStartOffset) {
+				return true; // already skipped, the previous ACK was lost
+			}
+			
+			if(!readBuffer.ensureCapacity(relativeLoc, true)) {
+				return false;
+			}
+			
+			currSequenceNumbers.keySet().removeIf(seq -> (int)(seq - readBufferSequenceNum) < relativeLoc);
+			endOfMessagePackets.removeIf(seq -> (int)(seq - readBufferSequenceNum) < relativeLoc);
+			
+			windowStartOffset = relativeLoc;
+			messageEnds.add(readBufferSequenceNum + windowStartOffset);
+			abandonedMessageEnds.add(readBufferSequenceNum + windowStartOffset);
+			
+			deliverInOrder();
+			skipAbandoned();
+			
+			if(PRINT_DEBUG) {
+				System.out.println("CONNECTION (IST): Skipped abandoned data up to FWD seq: " + sequenceNumber);
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Auto-tunes the receive window to follow the bandwidth-delay product of the path, much like Linux's dynamic
+		 * right-sizing: the in-order delivery rate is measured over at least one RTT and the window is kept at
+		 * twice the data delivered per RTT, so that the sender is never limited by our window.
+		 */
+		private void tuneReceiveWindow() {
+			long now = System.nanoTime() / 1000;
+			
+			// The time it takes to receive a full window of data is our own RTT estimate, which includes the
+			// delay of our ACKs. It can only overestimate the RTT, so smaller samples are always taken.
+			if(receiverRTTStartTime == -1) {
+				receiverRTTStartTime = now;
+				receiverRTTTarget = totalDataDelivered + maxWindowSize;
+			} else if(totalDataDelivered >= receiverRTTTarget) {
+				long sample = now - receiverRTTStartTime;
+				receiverRTT = receiverRTT == -1 || sample < receiverRTT ? sample : (7 * receiverRTT + sample) / 8;
+				receiverRTTStartTime = -1;
+			}
+			
+			if(!windowAutoTuning) {
+				tuneStartTime = -1;
+				return;
+			}
+			
+			long rtt = receiverRTT != -1 ? receiverRTT : rttEstimator.getSmoothedRTT();
+			if(rtt <= 0) {
+				rtt = TIMEOUT * 1000;
+			}
+			
+			if(tuneStartTime == -1) {
+				tuneStartTime = now;
+				tuneStartDelivered = totalDataDelivered;
+				return;
+			}
+			
+			long elapsed = now - tuneStartTime;
+			if(elapsed < rtt) {
+				return;
+			}
+			
+			long deliveredPerRTT = (totalDataDelivered - tuneStartDelivered) * rtt / elapsed;
+			long target = Math.max(minWindowSizeBound, Math.min(maxWindowSizeBound, 2 * deliveredPerRTT));
+			
+			int windowSize = maxWindowSize;
+			if(target > windowSize) {
+				windowSize = (int)target;
+			} else if(target < windowSize / 2) {
+				// shrink slowly, a single slow interval shouldn't collapse the window
+				windowSize = Math.max((int)target, windowSize - windowSize / 4);
+			}
+			
+			if(windowSize != maxWindowSize) {
+				if(PRINT_DEBUG) {
+					System.out.println("CONNECTION (IST): Auto-tuned window from " + maxWindowSize + " to " + windowSize + " bytes. RTT: " + rtt + " us");
+				}
+				
+				maxWindowSize = windowSize;
+			}
+			
+			tuneStartTime = now;
+			tuneStartDelivered = totalDataDelivered;
+		}
+		
+		/**
+		 * Goes through all the packets received and sends an ACK packet with the contents.
+		 */
+		private void ackReceivedPackets() {
+			if(ackPending) {
+				ackPending = false;
+				ackTimer.cancel();
+			}
+			
+			if(packetsReceived.size() > 0 || forwardSequenceNumber != -1) {
+				ArrayList<Integer> acks = new ArrayList<>();
+				long prevDataDelivered = totalDataDelivered;
+				boolean forwarded = false;
+				
+				synchronized(readBuffer) {
+					if(PRINT_DEBUG) {
+						System.out.print("CONNECTION (IST): Sending ack packet, acks: ");
+					}
+					
+					for(RBTPPacket p : packetsReceived) {
+						if(PRINT_DEBUG) {
+							System.out.print(p.sequenceNumber() + ", ");
+						}
+						
+						long relativeLoc = p.sequenceNumber() - readBufferSequenceNum;
+						if(relativeLoc < 0) {
+							relativeLoc = (int)(0x100000000L + relativeLoc);
+						}
+						
+						// Finds the relative location of the packet with regards to the first byte of the readBuffer
+						// The data was sent within our window, which is what keeps the readBuffer within the memory budget
+						if(readBuffer.ensureCapacity((int)Math.min(Integer.MAX_VALUE, relativeLoc + p.payload().capacity()), true)) {
+							acks.add((int)p.sequenceNumber());
+							
+							if(relativeLoc >= windowStartOffset) {
+								if(!currSequenceNumbers.containsKey(p.sequenceNumber())) {
+									currSequenceNumbers.put(p.sequenceNumber(), p.payload().capacity());
+									totalDataReceived += p.payload().capacity();
+									
+									if(messageMode && p.eom()) {
+										endOfMessagePackets.add(p.sequenceNumber());
+									}
+									
+									for(int i = 0; i < p.payload().capacity(); i++) {
+										readBuffer.buffer().put((int)(relativeLoc + i), p.payload().get(i));
+									}
+								} else {
+									if(PRINT_DEBUG) {
+										System.out.println("CONNECTION (IST): Received duplicate packet! Seq: " + p.sequenceNumber() + ", relativeLoc: " + relativeLoc);
+									}
+									
+									duplicateCount++;
+								}
+								
+								if(relativeLoc == windowStartOffset) {
+									deliverInOrder();
+								}
+							} else {
+								duplicateCount++;
+								if(PRINT_DEBUG) {
+									System.out.println("CONNECTION (IST): Received old packet! Seq: " + p.sequenceNumber() + ", relativeLoc: " + relativeLoc);
+								}
+							}
+						}
+						
+						p.destroy();
+					}
+					if(PRINT_DEBUG) {
+						System.out.println();
+					}
+					
+					if(forwardSequenceNumber != -1) {
+						forwarded = forward(forwardSequenceNumber);
+					}
+				}
+				
+				if(totalDataDelivered > prevDataDelivered) {
+					if(hasReadable(readableMark)) {
+						signalWaiters(readable);
+					}
+					
+					notifyReadiness();
+				}
+				
+				tuneReceiveWindow();
+				
+				if(readBuffer.isShrinkable() && !bufferIdleTimer.isScheduled()) {
+					bufferIdleTimer.schedule(BUFFER_IDLE_TIME);
+				}
+				
+				// Under memory pressure, the window shrinks towards what the buffer already holds
+				int windowSizeLeft = MemoryBudget.limitWindow(maxWindowSize, Math.max(minWindowSizeBound, readBuffer.capacity() - windowStartOffset));
+				for(long seq : currSequenceNumbers.keySet()) {
+					windowSizeLeft -= currSequenceNumbers.get(seq);
+				}
+				
+				while(acks.size() > 0) {
+					ByteBuffer ackBuf = BufferPool.getBuffer(Math.min(MAX_PACKET_SIZE, acks.size() * 4));
+					while(ackBuf.hasRemaining()) {
+						ackBuf.putInt(acks.remove(acks.size() - 1));
+					}
+					ackBuf.flip();
+					
+					RBTPPacket ackPacket = new RBTPPacket();
+					ackPacket.ack(true);
+					ackPacket.sequenceNumber((int)outputStreamThread.getNextSequenceNumber()); // doesn't really matter what seqnum is used, it isn't checked anyway
+					
+					setupPacket(ackPacket, Math.max(windowSizeLeft, 0));
+					
+					if(PRINT_DEBUG) {
+						System.out.println("CONNECTION (IST): Sending ACK packet, packets not acked: " + currSequenceNumbers.size() + ", windowSizeLeft: " + windowSizeLeft);
+					}
+					
+					ackPacket.metadata(ackBuf);
+					
+					sendPacket.accept(ackPacket);
+					ackPacket.destroy();
+				}
+				
+				if(forwarded) {
+					ByteBuffer ackBuf = BufferPool.getBuffer(4);
+					ackBuf.putInt((int)forwardSequenceNumber);
+					ackBuf.flip();
+					
+					RBTPPacket ackPacket = new RBTPPacket();
+					ackPacket.ack(true);
+					ackPacket.fwd(true);
+					ackPacket.sequenceNumber((int)outputStreamThread.getNextSequenceNumber());
+					setupPacket(ackPacket, Math.max(windowSizeLeft, 0));
+					ackPacket.metadata(ackBuf);
+					
+					sendPacket.accept(ackPacket);
+					ackPacket.destroy();
+				}
+				
+				forwardSequenceNumber = -1;
+				packetsReceived.clear();
+				
+				if(PRINT_DEBUG) {
+					System.out.println("CONNECTION (IST): Total data received: " + totalDataReceived + " bytes. Total duplicate packets: " + duplicateCount +
+							                   ". Total dropped packets: " + droppedCount + ". Total data packets: " + dataPackets + ", TOTAL packets received: " + totalPackets);
+				}
+			}
+			
+			for(RBTPStream stream : streams.values()) {
+				stream.sendAcks();
+			}
 		}
 		
 		/**
-		 * Write as much data as can fit in the outputBuffer
+		 * Hands a stream data or FIN packet to its stream, opening the stream if the remote just started it.
 		 */
-		public int write(ByteBuffer data) throws IOException {
-			if(nextSequenceNumber == -1) {
-				throw new IllegalStateException("OutputStreamThread not initialized.");
-			}
+		private void receiveStreamPacket(RBTPPacket packet) {
+			int id = packet.metadata() == null ? 0 : packet.metadata().getInt(0);
 			
-			if(requestClose || isClosed()) {
-				throw new IOException("Socket is closed or closing.");
+			RBTPStream stream = streams.get(id);
+			if(stream == null && id > 0 && (id & 1) != (nextStreamId & 1) && streams.size() < MAX_STREAMS) {
+				stream = new RBTPStream(RBTPConnection.this, id, RBTPStream.DEFAULT_BUFFER_SIZE);
+				streams.put(id, stream);
+				incomingStreams.offer(stream);
+				
+				signalWaiters(readable);
+				
+				if(PRINT_DEBUG) {
+					System.out.println("CONNECTION (IST): Remote opened stream " + id);
+				}
 			}
 			
-			synchronized(outputBuffer) {
-				int writeCount = Math.min(outputBuffer.remaining(), data.remaining());
-				for(int i = 0; i < writeCount; i++)
-					outputBuffer.put(data.get());
-				return writeCount;
+			if(stream == null) {
+				if(PRINT_DEBUG) {
+					System.out.println("CONNECTION (IST): Received packet for unknown stream " + id);
+				}
+			} else {
+				if(stream.receive(packet)) {
+					signalWaiters(readable);
+				}
+				
+				if(!ackPending) {
+					ackPending = true;
+					ackTimer.schedule(ACK_DELAY);
+				}
 			}
+			
+			packet.destroy();
 		}
 		
-		@Override
-		public void run() {
-			int timeoutCount = 0;
-			long prevResendTime = 0;
+		/**
+		 * Handles one received packet. This is the state machine of the connection: the packet is processed according to the current state.
+		 */
+		private void processPacket(RBTPPacket packet) {
+			if(PRINT_DEBUG) {
+				System.out.println("CONNECTION (IST): Received packet (seq: " + packet.sequenceNumber() + ")!");
+			}
 			
-			while(true) {
-				if(state == RBTPConnectionState.CLOSED) {
-					if(PRINT_DEBUG) {
-						System.out.println("CONNECTION (OST): Closed, OutputStreamThread exiting.");
+			switch(state) {
+				case SYN_SENT:
+					if(packet.cha() && packet.syn()) {
+						messageMode &= packet.msg();
+						
+						if(synFinLastPacket != null) {
+							if(!synFinLastPacket.retransmitted) {
+								rttEstimator.addSample((System.nanoTime() - synFinLastPacket.sendTime) / 1000);
+							}
+							
+							synFinLastPacket.destroy();
+						}
+						sendPacket.accept(synFinLastPacket = calculateChallenge(packet));
+						setState(RBTPConnectionState.ACK_CHA_SENT);
+					} else if(packet.ack() && synFinLastPacket != null && synFinLastPacket.metadata() != null) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Server redeemed our ticket, connection established!");
+						}
+						
+						messageMode &= packet.msg();
+						saveResumptionTicket(packet);
+						
+						if(!synFinLastPacket.retransmitted) {
+							rttEstimator.addSample((System.nanoTime() - synFinLastPacket.sendTime) / 1000);
+						}
+						
+						// Both sides start counting from the SYN, since there is no ACK-CHA
+						readBufferSequenceNum = packet.sequenceNumber();
+						outputStreamThread.init(packet.receiveWindow() << packet.scale(), synFinLastPacket.sequenceNumber());
+						
+						// Without an ACK-CHA to carry it, the initial data is written as usual, before the user can write
+						if(initialData != null) {
+							try {
+								write(new ByteBuffer[] { initialData }, 0, 1, false); // fits in the empty buffer
+							}
+							catch(IOException exc) {
+								exc.printStackTrace();
+							}
+							
+							BufferPool.release(initialData);
+							initialData = null;
+						}
+						
+						setState(RBTPConnectionState.ESTABLISHED);
+						
+						synFinLastPacket.destroy();
+						synFinLastPacket = null;
+					
+					} else {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Received invalid packet, expected SYN-CHA. Closing...");
+						}
+						setState(RBTPConnectionState.CLOSED);
 					}
 					
+					packet.destroy();
+					
 					break;
-				}
-				
-				synchronized(outputBuffer) {
-					if(outputBuffer.position() > 0) {
-						if(remoteReceiveWindowSize > 0) {
+				case SYN_RCVD:
+					if(packet.syn()) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Re-received SYN, resending SYN-CHA.");
+						}
+						sendPacket.accept(synFinLastPacket);
+					} else if(packet.ack() && packet.cha()) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Received ACK-CHA.");
+						}
+						
+						// Checked against the challenge we issued, what the client echoes back can't be trusted
+						if(ChallengeSolver.verify(packet, synFinLastPacket)) {
 							if(PRINT_DEBUG) {
-								System.out.println("CONNECTION (OST): Sending data, buffer pos: " + outputBuffer.position());
+								System.out.println("Connection: client passed challenge, connection established!");
 							}
 							
-							int prevPosition = outputBuffer.position();
+							RBTPPacket ackPacket = new RBTPPacket();
+							setupPacket(ackPacket, maxWindowSize);
+							ackPacket.sequenceNumber((int)(synFinLastPacket.sequenceNumber() + 1));
+							ackPacket.ack(true);
+							ackPacket.metadata(resumptionTicket);
+							resumptionTicket = null;
+							sendPacket.accept(ackPacket);
 							
-							outputBuffer.flip();
+							// Initialized first, since the handshake future lets the user write as soon as the state changes
+							readBufferSequenceNum = packet.sequenceNumber();
+							outputStreamThread.init(packet.receiveWindow() << packet.scale(), ackPacket.sequenceNumber());
 							
-							// Packetize the outputBuffer up to the smaller of data left to write and the remote receive window size.
-							int remaining = Math.min(outputBuffer.remaining(), remoteReceiveWindowSize);
-							remoteReceiveWindowSize -= remaining;
+							if(packet.payload() != null) {
+								receiveInitialData(packet);
+							}
 							
-							while(remaining > 0) {
-								int payloadSize = Math.min(remaining, MAX_PACKET_SIZE);
-								outputBuffer.limit(outputBuffer.position() + payloadSize);
-								
-								ByteBuffer payload = BufferPool.getBuffer(payloadSize);
-								payload.put(outputBuffer);
-								payload.flip();
-								
-								RBTPPacket packet = new RBTPPacket();
-								setupPacket(packet, maxWindowSize);
-								packet.sequenceNumber((int)nextSequenceNumber);
-								packet.payload(payload);
-								
-								sendPacket.accept(packet);
-								lastSent.add(packet);
-								
-								remaining -= payloadSize;
-								nextSequenceNumber = (nextSequenceNumber + payloadSize) & 0xFFFFFFFFL; // limit to 32-bit
+							setState(RBTPConnectionState.ESTABLISHED);
+							
+							if(synFinLastPacket != null) {
+								synFinLastPacket.destroy();
 							}
 							
-							outputBuffer.limit(prevPosition);
-							outputBuffer.compact();
+							synFinLastPacket = ackPacket;
+						} else {
+							if(PRINT_DEBUG) {
+								System.out.println("CONNECTION (IST): client failed challenge, connection rejected!");
+							}
+							
+							RBTPPacket rejPacket = new RBTPPacket();
+							setupPacket(rejPacket, maxWindowSize);
+							rejPacket.sequenceNumber((int)(synFinLastPacket.sequenceNumber() + 1));
+							rejPacket.rej(true);
+							sendPacket.accept(rejPacket);
+							
+							setState(RBTPConnectionState.TIMED_WAIT);
+							
+							if(synFinLastPacket != null) {
+								synFinLastPacket.destroy();
+							}
+							
+							synFinLastPacket = rejPacket;
+						}
+					} else {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Received invalid packet, expected ACK-CHA. Closing...");
 						}
-					} else if(lastSent.size() == 0 && requestClose && (state == RBTPConnectionState.ESTABLISHED || state == RBTPConnectionState.CLOSE_WAIT)) {
-						// If all packets are ACK-ed and there is no more data to send, honor requestClose and send the FIN packet
 						
-						RBTPPacket finPacket = new RBTPPacket();
-						setupPacket(finPacket, maxWindowSize);
-						finPacket.sequenceNumber((int)nextSequenceNumber);
-						finPacket.fin(true);
-						sendPacket.accept(finPacket);
-						lastSent.add(finPacket);
+						setState(RBTPConnectionState.CLOSED);
+					}
+					
+					packet.destroy();
+					
+					break;
+				case ACK_CHA_SENT:
+					if(packet.syn() && packet.cha()) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Re-received SYN-CHA, resending ACK-CHA.");
+						}
 						
-						if(state == RBTPConnectionState.ESTABLISHED) {
-							state = RBTPConnectionState.FIN_WAIT_1;
-						} else if(state == RBTPConnectionState.CLOSE_WAIT) {
-							state = RBTPConnectionState.LAST_ACK;
+						sendPacket.accept(synFinLastPacket);
+					} else if(packet.ack()) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Server accepted challenge, connection established!");
+						}
+						
+						saveResumptionTicket(packet);
+						
+						// The server's ACK also covers the initial data sent with the ACK-CHA
+						long sequenceNumber = synFinLastPacket.sequenceNumber();
+						if(synFinLastPacket.payload() != null) {
+							sequenceNumber = (sequenceNumber + synFinLastPacket.payload().capacity()) & 0xFFFFFFFFL;
 						}
 						
+						readBufferSequenceNum = packet.sequenceNumber();
+						outputStreamThread.init(packet.receiveWindow() << packet.scale(), sequenceNumber);
+						
+						setState(RBTPConnectionState.ESTABLISHED);
+						
+						if(synFinLastPacket != null) {
+							synFinLastPacket.destroy();
+						}
+						synFinLastPacket = null;
+					} else if(packet.rej()) {
 						if(PRINT_DEBUG) {
-							System.out.println("CONNECTION (OST): Close requested, sent FIN. seq: " + nextSequenceNumber + ", state: " + state);
+							System.out.println("CONNECTION (IST): Server declined challenge, connection rejected!");
 						}
-					}
-				}
-				
-				try {
-					// Poll for any ACK packets
-					RBTPPacket packet = ackPackets.poll(TIMEOUT, TimeUnit.MILLISECONDS);
-					if(packet == null) {
-						// if there are un-ACK-ed packets and the timeout was reached, resend all the packets
-						if(lastSent.size() > 0) {
-							if(System.currentTimeMillis() - prevResendTime >= TIMEOUT * 2) {
-								if(PRINT_DEBUG) {
-									System.out.println("CONNECTION (OST): Timeout! Resending " + lastSent.size() + " packets.");
-								}
-								
-								lastSent.forEach(sendPacket); // resend all
-								prevResendTime = System.currentTimeMillis();
-							}
-							
-							timeoutCount++;
-							if(timeoutCount >= TIMEOUT_COUNT_LIMIT) {
-								if(PRINT_DEBUG) {
-									System.out.println("CONNECTION (OST): Consecutive timeout count limit reached. Closing...");
-								}
-								
-								state = RBTPConnectionState.CLOSED;
-							}
+						
+						setState(RBTPConnectionState.CLOSED);
+						if(synFinLastPacket != null) {
+							synFinLastPacket.destroy();
+						}
+						synFinLastPacket = null;
+					} else if(!packet.syn() && !packet.fin() && !packet.rst()) {
+						// The server is established and already answering our initial data, but its ACK was lost
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Received data before the ACK, resending ACK-CHA.");
 						}
+						
+						sendPacket.accept(synFinLastPacket);
 					} else {
-						timeoutCount = 0;
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Received invalid packet, expected ACK/REJ. Closing...");
+						}
 						
-						if(packet.metadata() == null) {
+						setState(RBTPConnectionState.CLOSED);
+					}
+					
+					packet.destroy();
+					
+					break;
+				case ESTABLISHED:
+				case FIN_WAIT_1:
+				case FIN_WAIT_2:
+				case CLOSING:
+				case CLOSE_WAIT:
+				case LAST_ACK:
+					if(packet.stm() && !packet.ack()) {
+						receiveStreamPacket(packet);
+					} else if(packet.cha() && packet.ack()) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): RE-received ACK-CHA, resending ACK.");
+						}
+						
+						sendPacket.accept(synFinLastPacket);
+						
+						packet.destroy();
+					} else if(packet.syn()) {
+						// Our ACK to a resumed SYN was lost
+						if(synFinLastPacket != null && synFinLastPacket.ack() && !synFinLastPacket.fin()) {
+							if(PRINT_DEBUG) {
+								System.out.println("CONNECTION (IST): RE-received SYN, resending ACK.");
+							}
+							
+							sendPacket.accept(synFinLastPacket);
+						} else {
 							if(PRINT_DEBUG) {
-								System.out.println("CONNECTION (OST): no metadata ack? " + packet.ack() + ", seq: " + packet.sequenceNumber());
+								System.out.println("CONNECTION (IST): Somehow received SYN after connection established?");
 							}
 							
-							continue;
+							setState(RBTPConnectionState.CLOSED);
 						}
 						
-						remoteReceiveWindowSize = packet.receiveWindow() << packet.scale();
+						packet.destroy();
+					} else if(packet.ack()) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Received ACK packet. seq: " + packet.sequenceNumber());
+						}
 						
-						// Go through each ACK and remove relevant ones
-						for(int i = 0; i < packet.metadata().capacity(); i += 4) {
-							long ack = (long)packet.metadata().getInt(i) & 0xFFFFFFFFL;
-							
+						if(singleThreaded) {
+							outputStreamThread.processAck(packet);
+						} else {
+							outputStreamThread.acceptAck(packet);
+						}
+					} else if(packet.fwd()) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Received FWD packet. seq: " + packet.sequenceNumber());
+						}
+						
+						forwardSequenceNumber = packet.sequenceNumber();
+						
+						if(!ackPending) {
+							ackPending = true;
+							ackTimer.schedule(ACK_DELAY);
+						}
+						
+						packet.destroy();
+					} else if(packet.fin()) {
+						finReceived = true;
+						
+						RBTPPacket finAckPacket = new RBTPPacket();
+						setupPacket(finAckPacket, maxWindowSize);
+						finAckPacket.sequenceNumber((int)outputStreamThread.getNextSequenceNumber());
+						finAckPacket.ack(true);
+						ByteBuffer metadata = BufferPool.getBuffer(4);
+						metadata.putInt((int)packet.sequenceNumber());
+						finAckPacket.metadata(metadata);
+						
+						if(synFinLastPacket != null) {
+							synFinLastPacket.destroy();
+						}
+						synFinLastPacket = finAckPacket;
+						
+						if(state == RBTPConnectionState.ESTABLISHED) {
+							setState(RBTPConnectionState.CLOSE_WAIT);
+						} else if(state == RBTPConnectionState.FIN_WAIT_1) {
+							setState(RBTPConnectionState.CLOSING);
+						} else if(state == RBTPConnectionState.FIN_WAIT_2) {
+							setState(RBTPConnectionState.TIMED_WAIT);
+						}
+						
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Received FIN packet. seq: " + packet.sequenceNumber() + ". state: " + state);
+						}
+						
+						sendPacket.accept(finAckPacket);
+						
+						close();
+						
+						packet.destroy();
+					} else if(packet.rej()) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Somehow received REJ after connection established?");
+						}
+						
+						setState(RBTPConnectionState.CLOSED);
+						packet.destroy();
+					} else if(packet.rst()) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): RST flag unimplemented! Closing connection.");
+						}
+						
+						setState(RBTPConnectionState.CLOSED);
+						packet.destroy();
+					} else {
+						dataPackets++;
+						
+						// no flags are set
+						if(!packetsReceived.contains(packet)) {
 							if(PRINT_DEBUG) {
-								System.out.println("CONNECTION (OST): Received ACK on " + ack + //", relativeLoc: " + relativeLoc +
-										                   ", windowFirstSeqNum: " + windowFirstSequenceNumber + ", nextSeqNum: " + nextSequenceNumber);
+								System.out.println("CONNECTION (IST): Received data packet, seq: " + packet.sequenceNumber() + ", payload len: " + packet.payload().capacity());
 							}
 							
-							boolean found = false;
+							packetsReceived.add(packet);
 							
-							for(int j = 0; j < lastSent.size(); j++) {
-								if(lastSent.get(j).sequenceNumber() == ack) {
-									found = true;
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (OST): Successfully ACK-ed seq " + ack);
-									}
-									
-									RBTPPacket removedPacket = lastSent.remove(j);
-									if(removedPacket.fin()) {
-										if(state == RBTPConnectionState.FIN_WAIT_1) {
-											state = RBTPConnectionState.FIN_WAIT_2;
-										} else if(state == RBTPConnectionState.CLOSING) {
-											state = RBTPConnectionState.TIMED_WAIT;
-										} else if(state == RBTPConnectionState.LAST_ACK) {
-											state = RBTPConnectionState.TIMED_WAIT;
-										}
-										
-										if(PRINT_DEBUG) {
-											System.out.println("CONNECTION (OST): Received ACK for FIN. Output stream is done! state: " + state);
-										}
-									}
-									removedPacket.destroy();
-									break;
-								}
+							if(!ackPending) {
+								ackPending = true;
+								ackTimer.schedule(ACK_DELAY);
 							}
-							
-							if(!found) {
-								if(PRINT_DEBUG) {
-									System.out.println("CONNECTION (OST): Already acked: " + ack);
-								}
+						} else {
+							duplicateCount++;
+							if(PRINT_DEBUG) {
+								System.out.println("CONNECTION (IST): Received duplicate packet!");
 							}
+							
+							packet.destroy();
+						}
+					}
+					
+					break;
+				case TIMED_WAIT:
+					if(packet.fin() && synFinLastPacket != null) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Re-received FIN, resending ACK.");
 						}
 						
-						// resend whatever is left.
-						if(lastSent.size() > 0) {
-							if(System.currentTimeMillis() - prevResendTime >= TIMEOUT * 2) {
-								lastSent.forEach(sendPacket);
-								prevResendTime = System.currentTimeMillis();
-							}
+						sendPacket.accept(synFinLastPacket);
+					} else if(packet.ack() && packet.cha()) {
+						if(PRINT_DEBUG) {
+							System.out.println("CONNECTION (IST): Re-received ACK-CHA, resending REJ.");
 						}
 						
-						packet.destroy();
+						sendPacket.accept(synFinLastPacket);
+					} else if(PRINT_DEBUG) {
+						System.out.println("CONNECTION (IST): Received irrelevant packet while in TIMED_WAIT.");
 					}
-				}
-				catch(Exception exc) {
-					exc.printStackTrace();
-				}
+					
+					packet.destroy();
+					
+					break;
 			}
 		}
-	}
-	
-	/**
-	 * This class is the master of the RBTPConnection. It reads all packets and feeds ACKs to the OutputStreamThread.
-	 */
-	private class RBTPInputStreamThread implements Runnable, Consumer<RBTPPacket> {
-		private RBTPPacket synFinLastPacket;
-		private LinkedBlockingQueue<RBTPPacket> packetsQueue;
-		
-		private ArrayList<RBTPPacket> packetsReceived;
-		private HashMap<Long, Integer> currSequenceNumbers;
-		
-		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(8 * 1024 * 1024); // 8MB read buffer for now
-		private long readBufferSequenceNum;
-		private int windowStartOffset = 0;
-		
-		private long totalDataReceived = 0;
-		
-		RBTPInputStreamThread() {
-			packetsQueue = new LinkedBlockingQueue<>();
-			packetsReceived = new ArrayList<>();
-			currSequenceNumbers = new HashMap<>();
-		}
 		
-		@Override
-		public void accept(RBTPPacket packet) {
-			packetsQueue.offer(packet);
-			totalPackets++;
+		private boolean isHandshaking() {
+			return state == RBTPConnectionState.SYN_SENT || state == RBTPConnectionState.ACK_CHA_SENT || state == RBTPConnectionState.SYN_RCVD;
 		}
 		
-		public void init(RBTPPacket initPacket) {
-			this.synFinLastPacket = initPacket;
+		/**
+		 * Handshake timeout: resends the last init packet.
+		 */
+		private void onHandshakeTimeout() {
+			if(!isHandshaking()) {
+				return;
+			}
+			
+			if(synFinLastPacket != null) {
+				retryCount++;
+				if(retryCount >= TIMEOUT_COUNT_LIMIT) {
+					if(PRINT_DEBUG) {
+						System.out.println("CONNECTION (IST): Consecutive timeout limit reached. Closing...");
+					}
+					setState(RBTPConnectionState.CLOSED);
+					return;
+				}
+				
+				if(PRINT_DEBUG) {
+					System.out.println("CONNECTION (IST): Timeout! Resending last init/fin packet");
+				}
+				synFinLastPacket.retransmitted = true;
+				sendPacket.accept(synFinLastPacket);
+			} else {
+				if(PRINT_DEBUG) {
+					System.out.println("CONNECTION (IST): Init Fin Packet null!");
+				}
+			}
+			
+			handshakeTimer.schedule(TIMEOUT);
 		}
 		
-		// The challenge consists of computing the SHA1 of the header and having the right number of 0's
-		private boolean sha1BeginsWithNZeroes(RBTPPacket packet, byte n) {
-			ByteBuffer header = null;
-			try {
-				MessageDigest digest = MessageDigest.getInstance("SHA-1");
-				header = BufferPool.getBuffer(packet.headerSize() * 4);
-				header.putShort((short)packet.sourcePort());
-				header.putShort((short)packet.destinationPort());
-				header.putInt((int)packet.sequenceNumber());
-				header.putShort((short)packet.headerSize());
-				header.putShort(packet.flags());
-				header.putShort((short)0);
-				header.putShort((short)packet.receiveWindow());
-				for(int i = 0; i < packet.metadata().capacity(); i++) {
-					header.put(packet.metadata().get(i));
-				}
-				header.flip();
-				digest.update(header);
-				
-				byte[] bytes = digest.digest();
-				for(int i = 0; i < n; i++) {
-					if((bytes[i / 8] & (0x80 >>> (i % 8))) != 0) {
-						return false;
+		private void onBufferIdleTimeout() {
+			synchronized(readBuffer) {
+				if(currSequenceNumbers.isEmpty() && readBuffer.shrinkIfIdle(windowStartOffset, BUFFER_IDLE_TIME)) {
+					if(PRINT_DEBUG) {
+						System.out.println("CONNECTION (IST): Idle, shrunk read buffer.");
 					}
-				}
-				
-				return true;
-			}
-			catch(Exception exc) {
-				exc.printStackTrace();
-				throw new RuntimeException(exc);
-			}
-			finally {
-				if(header != null) {
-					BufferPool.release(header);
+				} else if(readBuffer.isShrinkable()) {
+					bufferIdleTimer.schedule(BUFFER_IDLE_TIME);
 				}
 			}
 		}
 		
-		private RBTPPacket calculateChallenge(RBTPPacket packet) {
-			long randNumber = 0;
-			for(int i = 0; i < 7; i++) {
-				randNumber |= ((long)packet.metadata().get(i) & 0xFF) << ((6 - i) * 8);
+		/**
+		 * Handles all the packets received so far and the expired timers.
+		 */
+		private void processEvents() {
+			// Process every packet received so far in one batch before deciding on ACKs
+			if(packetsQueue.drain(this::processPacket) > 0) {
+				retryCount = 0;
+				
+				if(isHandshaking()) {
+					handshakeTimer.schedule(TIMEOUT);
+				}
 			}
 			
-			byte n = packet.metadata().get(7);
-			
-			if(PRINT_DEBUG) {
-				System.out.println("CONNECTION (IST): Received SYN-CHA response! RandNum: " + randNumber);
+			if(ackTimer.checkExpired() || packetsReceived.size() * 4 >= MAX_PACKET_SIZE) {
+				ackReceivedPackets();
 			}
 			
-			RBTPPacket challengeResponse = new RBTPPacket();
-			setupPacket(challengeResponse, maxWindowSize);
-			challengeResponse.sequenceNumber((int)(synFinLastPacket.sequenceNumber() + 1));
-			challengeResponse.cha(true);
-			challengeResponse.ack(true);
-			
-			ByteBuffer metadata = BufferPool.getBuffer(8);
-			challengeResponse.metadata(metadata);
+			if(handshakeTimer.checkExpired()) {
+				onHandshakeTimeout();
+			}
 			
-			// Keeps trying by incrementing the received random number until the header starts with the required number of zeroes.
-			long time = System.nanoTime();
-			do {
-				for(int i = 0; i < 7; i++) {
-					metadata.put(i, (byte)(randNumber >>> ((6 - i) * 8)));
-				}
-				metadata.put(7, n);
-				
-				randNumber = (randNumber + 1) & 0xFFFFFFFFFFFFFFL;
-			} while(!sha1BeginsWithNZeroes(challengeResponse, n));
-			if(PRINT_DEBUG) {
-				System.out.println("CONNECTION (IST): Calculate challenge took " + (System.nanoTime() - time) / 1000000 + " ms. New RandNum: " + randNumber);
+			if(state == RBTPConnectionState.TIMED_WAIT) {
+				enterTimeWait();
+				return;
 			}
 			
-			return challengeResponse;
+			if(bufferIdleTimer.checkExpired()) {
+				onBufferIdleTimeout();
+			}
 		}
 		
 		/**
-		 * Main read method: fills the buffer as much as it can and returns the number of bytes read.
+		 * Leaves the rest of TIMED_WAIT to the NetworkManager's table, which only needs the last packet to answer
+		 * retransmissions with, and closes so that the threads and buffers are released now.
 		 */
-		public int read(ByteBuffer buffer) throws IOException {
-			if(windowStartOffset == 0 || buffer.remaining() == 0) {
-				if(requestClose || isClosed()) {
-					throw new IOException("Socket is closing or closed.");
+		private void enterTimeWait() {
+			if(synFinLastPacket != null) {
+				if(PRINT_DEBUG) {
+					System.out.println("CONNECTION (IST): TIMED_WAIT, handing the last packet over and closing.");
 				}
 				
-				return 0;
+				bindingInterface.timeWait(synFinLastPacket, TIMED_WAIT_TIMEOUT);
+				synFinLastPacket = null;
 			}
 			
-			synchronized(readBuffer) {
-				readBuffer.clear().limit(windowStartOffset);
-				int readCount = Math.min(buffer.remaining(), readBuffer.remaining());
-				for(int i = 0; i < readCount; i++)
-					buffer.put(readBuffer.get());
-				
-				readBuffer.limit(readBuffer.capacity());
-				readBuffer.compact();
-				
-				windowStartOffset -= readCount;
-				readBufferSequenceNum += readCount;
-				
-				return readCount;
-			}
+			setState(RBTPConnectionState.CLOSED);
 		}
 		
-		/**
-		 * Goes through all the packets received and sends an ACK packet with the contents.
-		 */
-		private void ackReceivedPackets() {
-			if(packetsReceived.size() > 0) {
-				ArrayList<Integer> acks = new ArrayList<>();
-				
-				synchronized(readBuffer) {
-					if(PRINT_DEBUG) {
-						System.out.print("CONNECTION (IST): Sending ack packet, acks: ");
-					}
-					
-					for(RBTPPacket p : packetsReceived) {
-						if(PRINT_DEBUG) {
-							System.out.print(p.sequenceNumber() + ", ");
-						}
-						
-						long relativeLoc = p.sequenceNumber() - readBufferSequenceNum;
-						if(relativeLoc < 0) {
-							relativeLoc = (int)(0x100000000L + relativeLoc);
-						}
-						
-						// Finds the relative location of the packet with regards to the first byte of the readBuffer
-						if(relativeLoc + p.payload().capacity() <= readBuffer.capacity()) {
-							acks.add((int)p.sequenceNumber());
-							
-							if(relativeLoc >= windowStartOffset) {
-								if(!currSequenceNumbers.containsKey(p.sequenceNumber())) {
-									currSequenceNumbers.put(p.sequenceNumber(), p.payload().capacity());
-									totalDataReceived += p.payload().capacity();
-									
-									for(int i = 0; i < p.payload().capacity(); i++) {
-										readBuffer.put((int)(relativeLoc + i), p.payload().get(i));
-									}
-								} else {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Received duplicate packet! Seq: " + p.sequenceNumber() + ", relativeLoc: " + relativeLoc);
-									}
-									
-									duplicateCount++;
-								}
-								
-								if(relativeLoc == windowStartOffset) {
-									do {
-										long index = readBufferSequenceNum + windowStartOffset;
-										windowStartOffset += currSequenceNumbers.get(index);
-										currSequenceNumbers.remove(index);
-									} while(currSequenceNumbers.containsKey(readBufferSequenceNum + windowStartOffset));
-								}
-							} else {
-								duplicateCount++;
-								if(PRINT_DEBUG) {
-									System.out.println("CONNECTION (IST): Received old packet! Seq: " + p.sequenceNumber() + ", relativeLoc: " + relativeLoc);
-								}
-							}
-						}
-						
-						p.destroy();
-					}
-					if(PRINT_DEBUG) {
-						System.out.println();
-					}
-				}
-				
-				int windowSizeLeft = maxWindowSize;
-				for(long seq : currSequenceNumbers.keySet()) {
-					windowSizeLeft -= currSequenceNumbers.get(seq);
-				}
-				
-				while(acks.size() > 0) {
-					ByteBuffer ackBuf = BufferPool.getBuffer(Math.min(MAX_PACKET_SIZE, acks.size() * 4));
-					while(ackBuf.hasRemaining()) {
-						ackBuf.putInt(acks.remove(acks.size() - 1));
-					}
-					ackBuf.flip();
-					
-					RBTPPacket ackPacket = new RBTPPacket();
-					ackPacket.ack(true);
-					ackPacket.sequenceNumber((int)outputStreamThread.getNextSequenceNumber()); // doesn't really matter what seqnum is used, it isn't checked anyway
-					
-					setupPacket(ackPacket, Math.max(windowSizeLeft, 0));
-					
-					if(PRINT_DEBUG) {
-						System.out.println("CONNECTION (IST): Sending ACK packet, packets not acked: " + currSequenceNumbers.size() + ", windowSizeLeft: " + windowSizeLeft);
-					}
-					
-					ackPacket.metadata(ackBuf);
-					
-					sendPacket.accept(ackPacket);
-					ackPacket.destroy();
-				}
-				
-				packetsReceived.clear();
-				
-				if(PRINT_DEBUG) {
-					System.out.println("CONNECTION (IST): Total data received: " + totalDataReceived + " bytes. Total duplicate packets: " + duplicateCount +
-							                   ". Total data packets: " + dataPackets + ", TOTAL packets received: " + totalPackets);
-				}
+		private void shutdown() {
+			if(synFinLastPacket != null) {
+				synFinLastPacket.destroy();
+			}
+			synFinLastPacket = null;
+			
+			if(resumptionTicket != null) {
+				BufferPool.release(resumptionTicket);
+				resumptionTicket = null;
+			}
+			
+			if(initialData != null) {
+				BufferPool.release(initialData);
+				initialData = null;
+			}
+			
+			saveDestinationMetrics();
+			
+			synchronized(readBuffer) {
+				readBuffer.release();
 			}
+			
+			ackTimer.cancel();
+			handshakeTimer.cancel();
+			bufferIdleTimer.cancel();
 		}
 		
 		/**
-		 * The main engine of the RBTPConnection. This contains the state machine.
+		 * The main engine of the RBTPConnection. Sleeps until packets are received or a timer expires.
 		 */
 		@Override
 		public void run() {
-			int timedWaitCount = 0;
-			int retryCount = 0;
-			long prevReceiveTime = -1;
-			
 			while(true) {
 				try {
 					if(state == RBTPConnectionState.CLOSED) {
 						if(PRINT_DEBUG) {
 							System.out.println("CONNECTION (IST): closed, InputStreamThread exiting.");
 						}
-						if(synFinLastPacket != null) {
-							synFinLastPacket.destroy();
-						}
-						synFinLastPacket = null;
+						
+						shutdown();
 						break;
 					}
 					
-					if(prevReceiveTime != -1 && System.currentTimeMillis() - prevReceiveTime >= TIMEOUT / 2) {
-						ackReceivedPackets();
-						prevReceiveTime = -1;
-					}
-					
-					// Receive a packet
-					RBTPPacket packet = packetsQueue.poll(TIMEOUT, TimeUnit.MILLISECONDS);
-					
-					if(packet == null) {
-						if(state == RBTPConnectionState.TIMED_WAIT && ++timedWaitCount >= (2000 / TIMEOUT)) {
-							state = RBTPConnectionState.CLOSED;
-							continue;
-						}
-						
-						if(state == RBTPConnectionState.SYN_SENT || state == RBTPConnectionState.ACK_CHA_SENT ||
-						     state == RBTPConnectionState.SYN_RCVD) {
-							if(synFinLastPacket != null) {
-								retryCount++;
-								if(retryCount >= TIMEOUT_COUNT_LIMIT) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Consecutive timeout limit reached. Closing...");
-									}
-									state = RBTPConnectionState.CLOSED;
-									continue;
-								}
-								
-								if(PRINT_DEBUG) {
-									System.out.println("CONNECTION (IST): Timeout! Resending last init/fin packet");
-								}
-								sendPacket.accept(synFinLastPacket);
-							} else {
-								if(PRINT_DEBUG) {
-									System.out.println("CONNECTION (IST): Init Fin Packet null!");
-								}
-							}
-						}
-					} else {
-						retryCount = 0;
-						
-						if(PRINT_DEBUG) {
-							System.out.println("CONNECTION (IST): Received packet (seq: " + packet.sequenceNumber() + ")!");
-						}
-						
-						/**
-						 * The state machine of the connection. The packet is processed according to the current state.
-						 */
-						switch(state) {
-							case SYN_SENT:
-								if(packet.cha() && packet.syn()) {
-									if(synFinLastPacket != null) {
-										synFinLastPacket.destroy();
-									}
-									sendPacket.accept(synFinLastPacket = calculateChallenge(packet));
-									state = RBTPConnectionState.ACK_CHA_SENT;
-								} else {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Received invalid packet, expected SYN-CHA. Closing...");
-									}
-									state = RBTPConnectionState.CLOSED;
-								}
-								
-								packet.destroy();
-								
-								break;
-							case SYN_RCVD:
-								if(packet.syn()) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Re-received SYN, resending SYN-CHA.");
-									}
-									sendPacket.accept(synFinLastPacket);
-								} else if(packet.ack() && packet.cha()) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Received ACK-CHA.");
-									}
-									
-									if(sha1BeginsWithNZeroes(packet, packet.metadata().get(7))) {
-										if(PRINT_DEBUG) {
-											System.out.println("Connection: client passed challenge, connection established!");
-										}
-										
-										RBTPPacket ackPacket = new RBTPPacket();
-										setupPacket(ackPacket, maxWindowSize);
-										ackPacket.sequenceNumber((int)(synFinLastPacket.sequenceNumber() + 1));
-										ackPacket.ack(true);
-										sendPacket.accept(ackPacket);
-										
-										state = RBTPConnectionState.ESTABLISHED;
-										
-										readBufferSequenceNum = packet.sequenceNumber();
-										outputStreamThread.init(packet.receiveWindow() << packet.scale(), ackPacket.sequenceNumber());
-										
-										if(synFinLastPacket != null) {
-											synFinLastPacket.destroy();
-										}
-										
-										synFinLastPacket = ackPacket;
-									} else {
-										if(PRINT_DEBUG) {
-											System.out.println("CONNECTION (IST): client failed challenge, connection rejected!");
-										}
-										
-										RBTPPacket rejPacket = new RBTPPacket();
-										setupPacket(rejPacket, maxWindowSize);
-										rejPacket.sequenceNumber((int)(synFinLastPacket.sequenceNumber() + 1));
-										rejPacket.rej(true);
-										sendPacket.accept(rejPacket);
-										
-										state = RBTPConnectionState.TIMED_WAIT;
-										
-										if(synFinLastPacket != null) {
-											synFinLastPacket.destroy();
-										}
-										
-										synFinLastPacket = rejPacket;
-									}
-								} else {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Received invalid packet, expected ACK-CHA. Closing...");
-									}
-									
-									state = RBTPConnectionState.CLOSED;
-								}
-								
-								packet.destroy();
-								
-								break;
-							case ACK_CHA_SENT:
-								if(packet.syn() && packet.cha()) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Re-received SYN-CHA, resending ACK-CHA.");
-									}
-									
-									sendPacket.accept(synFinLastPacket);
-								} else if(packet.ack()) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Server accepted challenge, connection established!");
-									}
-									
-									state = RBTPConnectionState.ESTABLISHED;
-									
-									readBufferSequenceNum = packet.sequenceNumber();
-									outputStreamThread.init(packet.receiveWindow() << packet.scale(), synFinLastPacket.sequenceNumber());
-									
-									if(synFinLastPacket != null) {
-										synFinLastPacket.destroy();
-									}
-									synFinLastPacket = null;
-								} else if(packet.rej()) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Server declined challenge, connection rejected!");
-									}
-									
-									state = RBTPConnectionState.CLOSED;
-									if(synFinLastPacket != null) {
-										synFinLastPacket.destroy();
-									}
-									synFinLastPacket = null;
-								} else {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Received invalid packet, expected ACK/REJ. Closing...");
-									}
-									
-									state = RBTPConnectionState.CLOSED;
-								}
-								
-								packet.destroy();
-								
-								break;
-							case ESTABLISHED:
-							case FIN_WAIT_1:
-							case FIN_WAIT_2:
-							case CLOSING:
-							case CLOSE_WAIT:
-							case LAST_ACK:
-								if(packet.cha() && packet.ack()) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): RE-received ACK-CHA, resending ACK.");
-									}
-									
-									sendPacket.accept(synFinLastPacket);
-									
-									packet.destroy();
-								} else if(packet.ack()) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Received ACK packet. seq: " + packet.sequenceNumber());
-									}
-									
-									outputStreamThread.acceptAck(packet);
-								} else if(packet.fin()) {
-									RBTPPacket finAckPacket = new RBTPPacket();
-									setupPacket(finAckPacket, maxWindowSize);
-									finAckPacket.sequenceNumber((int)outputStreamThread.getNextSequenceNumber());
-									finAckPacket.ack(true);
-									ByteBuffer metadata = BufferPool.getBuffer(4);
-									metadata.putInt((int)packet.sequenceNumber());
-									finAckPacket.metadata(metadata);
-									
-									if(synFinLastPacket != null) {
-										synFinLastPacket.destroy();
-									}
-									synFinLastPacket = finAckPacket;
-									
-									if(state == RBTPConnectionState.ESTABLISHED) {
-										state = RBTPConnectionState.CLOSE_WAIT;
-									} else if(state == RBTPConnectionState.FIN_WAIT_1) {
-										state = RBTPConnectionState.CLOSING;
-									} else if(state == RBTPConnectionState.FIN_WAIT_2) {
-										state = RBTPConnectionState.TIMED_WAIT;
-									}
-									
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Received FIN packet. seq: " + packet.sequenceNumber() + ". state: " + state);
-									}
-									
-									sendPacket.accept(finAckPacket);
-									
-									requestClose = true;
-									
-									packet.destroy();
-								} else if(packet.rej()) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Somehow received REJ after connection established?");
-									}
-									
-									state = RBTPConnectionState.CLOSED;
-									packet.destroy();
-								} else if(packet.rst()) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): RST flag unimplemented! Closing connection.");
-									}
-									
-									state = RBTPConnectionState.CLOSED;
-									packet.destroy();
-								} else if(packet.syn()) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Somehow received SYN after connection established?");
-									}
-									
-									state = RBTPConnectionState.CLOSED;
-									packet.destroy();
-								} else {
-									dataPackets++;
-									
-									// no flags are set
-									if(!packetsReceived.contains(packet)) {
-										if(PRINT_DEBUG) {
-											System.out.println("CONNECTION (IST): Received data packet, seq: " + packet.sequenceNumber() + ", payload len: " + packet.payload().capacity());
-										}
-										
-										packetsReceived.add(packet);
-										prevReceiveTime = System.currentTimeMillis();
-									} else {
-										duplicateCount++;
-										if(PRINT_DEBUG) {
-											System.out.println("CONNECTION (IST): Received duplicate packet!");
-										}
-										
-										packet.destroy();
-									}
-								}
-								
-								break;
-							case TIMED_WAIT:
-								timedWaitCount = 0;
-								
-								if(packet.fin() && synFinLastPacket != null) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Re-received FIN, resending ACK.");
-									}
-									
-									sendPacket.accept(synFinLastPacket);
-								} else if(packet.ack() && packet.cha()) {
-									if(PRINT_DEBUG) {
-										System.out.println("CONNECTION (IST): Re-received ACK-CHA, resending REJ.");
-									}
-									
-									sendPacket.accept(synFinLastPacket);
-								} else if(PRINT_DEBUG) {
-									System.out.println("CONNECTION (IST): Received irrelevant packet while in TIMED_WAIT.");
-								}
-								
-								packet.destroy();
-								
-								break;
-						}
-					}
+					processEvents();
 				}
 				catch(Exception exc) {
 					exc.printStackTrace();
-					state = RBTPConnectionState.CLOSED;
+					setState(RBTPConnectionState.CLOSED);
+				}
+				
+				if(state != RBTPConnectionState.CLOSED) {
+					wakeup.await();
 				}
 			}
 		}
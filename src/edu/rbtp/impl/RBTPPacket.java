@@ -11,6 +11,12 @@ import edu.rbtp.tools.BufferPool;
 class RBTPPacket {
 	public RBTPSocketAddress address;
 	
+	// Local bookkeeping used by the sender, not part of the packet format
+	long sendTime = -1;
+	boolean retransmitted;
+	long deadline = -1; // partial reliability: the time after which the sender gives up on the packet, -1 for never
+	long messageEnd; // the sequence number right after the message the packet belongs to
+	
 	private short sourcePort;
 	private short destinationPort;
 	private int sequenceNumber;
@@ -18,6 +24,7 @@ class RBTPPacket {
 	private short receiveWindow;
 	private ByteBuffer metadata;
 	private ByteBuffer payload;
+	private boolean pooledPayload = true; // false if the payload is a slice of a buffer not owned by the BufferPool
 	
 	@Override
 	public boolean equals(Object o) {
@@ -108,6 +115,42 @@ class RBTPPacket {
 		flags |= rst ? 0x0400 : 0;
 	}
 	
+	// Message mode: requested on the SYN and accepted on the SYN-CHA
+	public boolean msg() {
+		return (flags & 0x0200) != 0;
+	}
+	
+	public void msg(boolean msg) {
+		flags |= msg ? 0x0200 : 0;
+	}
+	
+	// End of message: set on the last data packet of each message in message mode
+	public boolean eom() {
+		return (flags & 0x0100) != 0;
+	}
+	
+	public void eom(boolean eom) {
+		flags |= eom ? 0x0100 : 0;
+	}
+	
+	// Stream: the packet belongs to the stream whose id is the first metadata int, see RBTPStream
+	public boolean stm() {
+		return (flags & 0x0080) != 0;
+	}
+	
+	public void stm(boolean stm) {
+		flags |= stm ? 0x0080 : 0;
+	}
+	
+	// Forward: the receiver skips the abandoned data before the sequence number of this packet, see setMessageLifetime
+	public boolean fwd() {
+		return (flags & 0x0040) != 0;
+	}
+	
+	public void fwd(boolean fwd) {
+		flags |= fwd ? 0x0040 : 0;
+	}
+	
 	public byte scale() {
 		return (byte)(flags & 0xF);
 	}
@@ -141,7 +184,16 @@ class RBTPPacket {
 	}
 	
 	public void payload(ByteBuffer payload) {
+		payload(payload, true);
+	}
+	
+	/**
+	 * @param payload the payload, its capacity is the payload size
+	 * @param pooled  whether the payload was taken from the BufferPool and should be released to it by destroy
+	 */
+	public void payload(ByteBuffer payload, boolean pooled) {
 		this.payload = payload;
+		this.pooledPayload = pooled;
 	}
 	
 	public void decode(ByteBuffer buffer) {
@@ -208,7 +260,9 @@ class RBTPPacket {
 			metadata = null;
 		}
 		if(payload != null) {
-			BufferPool.release(payload);
+			if(pooledPayload) {
+				BufferPool.release(payload);
+			}
 			payload = null;
 		}
 	}
@@ -2,26 +2,219 @@ package edu.rbtp.impl;
 
 import static edu.rbtp.tools.BufferPool.*;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.IntSupplier;
 
 import edu.rbtp.RBTPSocketAddress;
+import edu.rbtp.tools.BufferPool;
 
 /**
  *
  * The Server implementation becomes the Bindable instead of the Connection. RBTPConnections then bind to this class
  * instead of the NetworkManager. This allows each server to handle its own multiplexing.
+ *
+ * SYNs are answered with a challenge without keeping any state, see ChallengeCookie, and a connection is only
+ * created once a client sends back a valid answer. Established clients get a resumption ticket, see ResumptionTickets,
+ * which lets their next SYN skip the challenge.
  * 
  * @author Roi Atalla
  */
 public class RBTPServer implements Bindable {
+	public static final int DEFAULT_BACKLOG = 128;
+	
+	// Challenge difficulties are in leading zero bits of the SHA-1, each one doubling the client's expected work
+	public static final int DEFAULT_MIN_CHALLENGE_DIFFICULTY = 0;
+	public static final int DEFAULT_MAX_CHALLENGE_DIFFICULTY = 20;
+	public static final int MAX_CHALLENGE_DIFFICULTY = 28;
+	
+	public static final long DEFAULT_TICKET_LIFETIME = 24 * 60 * 60 * 1000; // ms
+	
+	// The system load average is sampled at most this often
+	private static final long CPU_LOAD_SAMPLE_INTERVAL = 1000000000L;
+	
+	// Challenges issued are counted over this long
+	private static final long CHALLENGE_RATE_INTERVAL = 1000000000L;
+	
 	private BindingInterface serverBindingInterface;
 	private Consumer<RBTPConnection> acceptHandler;
 	private volatile boolean closed = false;
 	
+	private volatile int backlog = DEFAULT_BACKLOG;
+	private volatile boolean messageMode;
+	private final AtomicInteger pendingHandshakes = new AtomicInteger();
+	private int refusedCount = 0;
+	
+	private volatile int minChallengeDifficulty = DEFAULT_MIN_CHALLENGE_DIFFICULTY;
+	private volatile int maxChallengeDifficulty = DEFAULT_MAX_CHALLENGE_DIFFICULTY;
+	private volatile IntSupplier acceptQueueSize;
+	private volatile long ticketLifetime = DEFAULT_TICKET_LIFETIME;
+	
+	private final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+	private final int processors = Runtime.getRuntime().availableProcessors();
+	private volatile double cpuLoad;
+	private volatile long cpuLoadSampleTime = System.nanoTime() - CPU_LOAD_SAMPLE_INTERVAL;
+	
+	// Only updated by the packet thread
+	private volatile int challengesIssued, previousChallengesIssued;
+	private long challengeRateIntervalStart = System.nanoTime();
+	
 	public RBTPServer() {
 	}
 	
+	public int getBacklog() {
+		return backlog;
+	}
+	
+	/**
+	 * Sets the maximum number of handshakes that may be in progress at once, counted from a solved challenge until the
+	 * connection is established. Challenge responses from new clients are dropped while the limit is reached, and the
+	 * clients retry as they would after a lost packet. The challenge difficulty also scales with the backlog.
+	 *
+	 * @param backlog the maximum number of pending handshakes
+	 */
+	public void setBacklog(int backlog) {
+		if(backlog <= 0) {
+			throw new IllegalArgumentException("Backlog must be positive.");
+		}
+		
+		this.backlog = backlog;
+	}
+	
+	public boolean isMessageMode() {
+		return messageMode;
+	}
+	
+	/**
+	 * Sets whether clients that request message mode get it. Other clients still get a stream connection.
+	 *
+	 * @param messageMode true to accept message mode
+	 */
+	public void setMessageMode(boolean messageMode) {
+		this.messageMode = messageMode;
+	}
+	
+	public int getMinChallengeDifficulty() {
+		return minChallengeDifficulty;
+	}
+	
+	public int getMaxChallengeDifficulty() {
+		return maxChallengeDifficulty;
+	}
+	
+	/**
+	 * Sets the range of the SHA-1 challenge difficulty, in leading zero bits. Each SYN-CHA gets the minimum while the
+	 * server is idle and up to the maximum as it gets loaded, see getChallengeDifficulty.
+	 *
+	 * @param min the difficulty while idle, 0 to let clients connect with no work
+	 * @param max the difficulty at full load
+	 */
+	public void setChallengeDifficulty(int min, int max) {
+		if(min < 0 || max < min || max > MAX_CHALLENGE_DIFFICULTY) {
+			throw new IllegalArgumentException("Invalid challenge difficulty range: " + min + " to " + max);
+		}
+		
+		this.minChallengeDifficulty = min;
+		this.maxChallengeDifficulty = max;
+	}
+	
+	/**
+	 * Lets the load include the established connections waiting to be accepted, out of a queue as large as the backlog.
+	 *
+	 * @param acceptQueueSize returns the number of connections waiting to be accepted
+	 */
+	public void setAcceptQueueSize(IntSupplier acceptQueueSize) {
+		this.acceptQueueSize = acceptQueueSize;
+	}
+	
+	/**
+	 * The load is the highest of the challenges issued over the last second, the pending handshakes and the
+	 * connections waiting to be accepted, all relative to the backlog, and of the CPU and memory load. Since unanswered
+	 * challenges aren't tracked, the rate they are issued at stands in for the handshakes in progress. The difficulty
+	 * goes linearly from the minimum at no load to the maximum at full load, so the client's work grows exponentially
+	 * with the load.
+	 *
+	 * @return the difficulty to give the next challenge
+	 */
+	public int getChallengeDifficulty() {
+		int min = minChallengeDifficulty, max = maxChallengeDifficulty;
+		if(min == max) {
+			return min;
+		}
+		
+		int backlog = this.backlog;
+		int challenges = Math.max(challengesIssued, previousChallengesIssued);
+		double load = (double)Math.max(challenges, pendingHandshakes.get()) / backlog;
+		
+		IntSupplier acceptQueueSize = this.acceptQueueSize;
+		if(acceptQueueSize != null) {
+			load = Math.max(load, (double)acceptQueueSize.getAsInt() / backlog);
+		}
+		
+		load = Math.min(1.0, Math.max(load, Math.max(getCpuLoad(), MemoryBudget.getPressure())));
+		
+		return min + (int)Math.round(load * (max - min));
+	}
+	
+	private double getCpuLoad() {
+		long now = System.nanoTime();
+		if(now - cpuLoadSampleTime >= CPU_LOAD_SAMPLE_INTERVAL) {
+			cpuLoadSampleTime = now;
+			
+			// Busy processors alone aren't overload, so this only rises once there are more runnable threads than
+			// processors, up to full load at twice as many. The load average is negative where it isn't available.
+			double loadAverage = osBean.getSystemLoadAverage();
+			cpuLoad = loadAverage < 0 ? 0 : Math.min(1.0, Math.max(0.0, loadAverage / processors - 1.0));
+		}
+		
+		return cpuLoad;
+	}
+	
+	private void countChallenge() {
+		long now = System.nanoTime();
+		if(now - challengeRateIntervalStart >= CHALLENGE_RATE_INTERVAL) {
+			// An interval with no challenges at all clears both counts
+			previousChallengesIssued = now - challengeRateIntervalStart < 2 * CHALLENGE_RATE_INTERVAL ? challengesIssued : 0;
+			challengesIssued = 0;
+			challengeRateIntervalStart = now;
+		}
+		
+		challengesIssued++;
+	}
+	
+	public long getTicketLifetime() {
+		return ticketLifetime;
+	}
+	
+	/**
+	 * Sets how long the resumption tickets given to clients are valid for. A client presenting a valid ticket in its
+	 * SYN is established right away, without a challenge. Each ticket can only be used once, and comes with a new one.
+	 *
+	 * @param ticketLifetime the lifetime in milliseconds, 0 to neither issue nor accept tickets
+	 */
+	public void setTicketLifetime(long ticketLifetime) {
+		if(ticketLifetime < 0) {
+			throw new IllegalArgumentException("Negative ticket lifetime.");
+		}
+		
+		this.ticketLifetime = ticketLifetime;
+	}
+	
+	public int getPendingHandshakeCount() {
+		return pendingHandshakes.get();
+	}
+	
+	/**
+	 * @return the number of challenge responses dropped because the backlog was full
+	 */
+	public int getRefusedCount() {
+		return refusedCount;
+	}
+	
 	public boolean isClosed() {
 		return closed;
 	}
@@ -51,6 +244,8 @@ public class RBTPServer implements Bindable {
 	
 	private class PacketConsumer implements Consumer<RBTPPacket> {
 		private HashMap<RBTPSocketAddress, BindingInterface> clients;
+		private final ChallengeCookie cookie = new ChallengeCookie();
+		private final ResumptionTickets tickets = new ResumptionTickets();
 		
 		PacketConsumer() {
 			clients = new HashMap<>();
@@ -72,79 +267,193 @@ public class RBTPServer implements Bindable {
 			// Check if this packet came from someone we know already
 			BindingInterface clientBindingInterface = clients.get(packet.address);
 			
-			// If no binding exists, it's a spurious packet or a SYN from a new connection
+			// If no binding exists, it's a spurious packet, a SYN from a new client or the answer to a challenge
 			if(clientBindingInterface == null) {
-				if(!packet.syn()) {
+				// Out of memory for another connection: the client keeps retrying until some is freed, or gives up
+				if((packet.syn() || (packet.cha() && packet.ack())) && !MemoryBudget.canAdmitConnection()) {
+					refusedCount++;
 					if(PRINT_DEBUG) {
-						System.out.println("SERVER: Received non-SYN initial packet?!");
+						System.out.println("SERVER: Memory budget used up, dropped handshake packet from " + packet.address);
 					}
+					packet.destroy();
 					return;
 				}
 				
-				if(PRINT_DEBUG) {
-					System.out.println("SERVER: New connection from " + packet.address);
-				}
-				
-				RBTPConnection newConnection = new RBTPConnection();
-				BindingInterface newBindingInterface = new BindingInterface() {
-					private Consumer<RBTPPacket> packetReceivedConsumer;
-					
-					@Override
-					public short getPort() {
-						return serverBindingInterface.getPort();
-					}
-					
-					/**
-					 * the packet send consumer is the same as the one NetworkManager gave us.
-					 * all connections share the same sender
-					 */
-					@Override
-					public Consumer<RBTPPacket> getPacketSendConsumer() {
-						return serverBindingInterface.getPacketSendConsumer();
-					}
-					
-					@Override
-					public Consumer<RBTPPacket> getPacketReceivedConsumer() {
-						return packetReceivedConsumer;
-					}
-					
-					@Override
-					public void setPacketReceivedConsumer(Consumer<RBTPPacket> packetRcvd) {
-						this.packetReceivedConsumer = packetRcvd;
+				if(packet.syn()) {
+					if(packet.metadata() != null && ticketLifetime > 0 && pendingHandshakes.get() < backlog && tickets.redeem(packet)) {
+						if(PRINT_DEBUG) {
+							System.out.println("SERVER: Resumed connection from " + packet.address);
+						}
+						
+						newConnection(packet).resume(packet, issueTicket(packet));
+					} else {
+						sendChallenge(packet);
 					}
 					
-					@Override
-					public void unbind() {
-						clients.remove(packet.address);
-						
-						if(closed && clients.isEmpty()) {
-							serverBindingInterface.unbind();
-						}
+					packet.destroy();
+					return;
+				}
+				
+				if(!packet.cha() || !packet.ack()) {
+					if(PRINT_DEBUG) {
+						System.out.println("SERVER: Received non-SYN initial packet?!");
 					}
-				};
-				clients.put(packet.address, newBindingInterface);
-				newConnection.bind(newBindingInterface);
-				newConnection.accept(packet);
+					return;
+				}
 				
-				// Start a small thread that waits until the connection is fully made until it sends the connection up
-				// to the user for accept()
-				// If a connection fails, it fails silently without the user even knowing one was attempted
-				new Thread(() -> {
-					while(!newConnection.isConnected() && !newConnection.isClosed()) {
-						try {
-							Thread.sleep(10);
-						}
-						catch(Exception exc) {
-						}
+				if(pendingHandshakes.get() >= backlog) {
+					refusedCount++;
+					if(PRINT_DEBUG) {
+						System.out.println("SERVER: Backlog full, dropped ACK-CHA from " + packet.address);
 					}
-					
-					if(newConnection.isConnected()) {
-						acceptHandler.accept(newConnection);
+					packet.destroy();
+					return;
+				}
+				
+				if(!cookie.check(packet)) {
+					if(PRINT_DEBUG) {
+						System.out.println("SERVER: " + packet.address + " failed challenge, connection rejected!");
 					}
-				}).start();
+					sendReject(packet);
+					packet.destroy();
+					return;
+				}
+				
+				if(PRINT_DEBUG) {
+					System.out.println("SERVER: New connection from " + packet.address);
+				}
+				
+				newConnection(packet).accept(packet, cookie.getSequenceNumber(), cookie.getChallenge(), packet.metadata().get(7) & 0xFF, issueTicket(packet));
 			} else if(clientBindingInterface.getPacketReceivedConsumer() != null) {
 				clientBindingInterface.getPacketReceivedConsumer().accept(packet);
 			}
 		}
+		
+		/**
+		 * Creates and binds the connection for a new client.
+		 */
+		private RBTPConnection newConnection(RBTPPacket packet) {
+			RBTPConnection newConnection = new RBTPConnection();
+			newConnection.setMessageMode(messageMode);
+			BindingInterface newBindingInterface = new BindingInterface() {
+				private Consumer<RBTPPacket> packetReceivedConsumer;
+				
+				@Override
+				public short getPort() {
+					return serverBindingInterface.getPort();
+				}
+				
+				/**
+				 * the packet send consumer is the same as the one NetworkManager gave us.
+				 * all connections share the same sender
+				 */
+				@Override
+				public Consumer<RBTPPacket> getPacketSendConsumer() {
+					return serverBindingInterface.getPacketSendConsumer();
+				}
+				
+				/**
+				 * each connection gets its own flow, so that the server's connections share the egress fairly too
+				 */
+				@Override
+				public EgressScheduler.Flow openFlow() {
+					return serverBindingInterface.openFlow();
+				}
+				
+				@Override
+				public Consumer<RBTPPacket> getPacketReceivedConsumer() {
+					return packetReceivedConsumer;
+				}
+				
+				@Override
+				public void setPacketReceivedConsumer(Consumer<RBTPPacket> packetRcvd) {
+					this.packetReceivedConsumer = packetRcvd;
+				}
+				
+				@Override
+				public void timeWait(RBTPPacket lastPacket, long timeout) {
+					serverBindingInterface.timeWait(lastPacket, timeout);
+				}
+				
+				@Override
+				public void unbind() {
+					clients.remove(packet.address);
+					
+					if(closed && clients.isEmpty()) {
+						serverBindingInterface.unbind();
+					}
+				}
+			};
+			clients.put(packet.address, newBindingInterface);
+			newConnection.bind(newBindingInterface);
+			
+			// Once the connection is fully made, the connection's thread sends it up to the user for accept()
+			// If a connection fails, it fails silently without the user even knowing one was attempted
+			pendingHandshakes.incrementAndGet();
+			newConnection.getHandshakeFuture().whenComplete((connection, exc) -> {
+				pendingHandshakes.decrementAndGet();
+				
+				if(exc == null) {
+					acceptHandler.accept(connection);
+				}
+			});
+			
+			return newConnection;
+		}
+		
+		private ByteBuffer issueTicket(RBTPPacket packet) {
+			long ticketLifetime = RBTPServer.this.ticketLifetime;
+			return ticketLifetime > 0 ? tickets.issue(packet.address, ticketLifetime) : null;
+		}
+		
+		/**
+		 * Answers a SYN with a SYN-CHA. Nothing is kept: the challenge and our starting sequence number come from the
+		 * cookie, which recomputes them when the answer arrives.
+		 */
+		private void sendChallenge(RBTPPacket synPacket) {
+			int difficulty = getChallengeDifficulty();
+			countChallenge();
+			
+			cookie.issue(synPacket, difficulty);
+			long challenge = cookie.getChallenge();
+			
+			RBTPPacket chaPacket = newPacket(synPacket);
+			chaPacket.sequenceNumber(cookie.getSequenceNumber());
+			chaPacket.syn(true);
+			chaPacket.cha(true);
+			chaPacket.msg(messageMode && synPacket.msg()); // message mode is on if the client requested it and we allow it
+			ByteBuffer metadata = BufferPool.getBuffer(8);
+			for(int i = 6; i >= 0; i--) {
+				metadata.put((byte)(challenge >>> (i * 8)));
+			}
+			metadata.put((byte)difficulty);
+			metadata.flip();
+			chaPacket.metadata(metadata);
+			
+			serverBindingInterface.getPacketSendConsumer().accept(chaPacket);
+			chaPacket.destroy();
+			
+			if(PRINT_DEBUG) {
+				System.out.println("SERVER: Received SYN from " + synPacket.address + ", sending SYN-CHA, seq: " + cookie.getSequenceNumber() + ", RandNum: " + challenge + ", difficulty: " + difficulty);
+			}
+		}
+		
+		private void sendReject(RBTPPacket ackChaPacket) {
+			RBTPPacket rejPacket = newPacket(ackChaPacket);
+			rejPacket.sequenceNumber(cookie.getSequenceNumber() + 1);
+			rejPacket.rej(true);
+			
+			serverBindingInterface.getPacketSendConsumer().accept(rejPacket);
+			rejPacket.destroy();
+		}
+		
+		private RBTPPacket newPacket(RBTPPacket receivedPacket) {
+			RBTPPacket packet = new RBTPPacket();
+			packet.address = receivedPacket.address;
+			packet.sourcePort(serverBindingInterface.getPort());
+			packet.destinationPort(receivedPacket.address.getPort());
+			packet.receiveWindow((short)RBTPConnection.DEFAULT_MIN_WINDOW_SIZE);
+			return packet;
+		}
 	}
 }
@@ -0,0 +1,501 @@
+package edu.rbtp.impl;
+
+import static edu.rbtp.tools.BufferPool.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import edu.rbtp.tools.BufferPool;
+
+/**
+ * An independent ordered byte stream multiplexed over an RBTPConnection, much like a QUIC stream. Streams share the
+ * connection's handshake, port and RTT estimate, but each one has its own offsets, flow control window, reassembly
+ * buffer and retransmissions, so a lost packet only holds back the stream it belongs to.
+ *
+ * Stream packets have the STM flag set and carry the stream id as their first metadata int. The sequence number of
+ * a data packet is the stream offset of its payload, and a FIN packet marks the end of the stream at its sequence
+ * number. ACK packets list the ACK-ed offsets after the stream id and advertise the stream's receive window. A data
+ * packet without a payload is a window probe, which the receiver answers with its current window.
+ *
+ * The connection's own byte stream is stream 0. Other streams are opened by either end with openStream and accepted
+ * by the other end with acceptStream, both on RBTPConnection.
+ *
+ * @author Roi Atalla
+ */
+public class RBTPStream {
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+	
+	private static final int MAX_PAYLOAD_SIZE = RBTPConnection.MAX_PACKET_SIZE - 4; // room for the stream id
+	
+	private final RBTPConnection connection;
+	private final int id;
+	
+	// Send side: filled by writers, then packetized, ACK-ed and retransmitted by the OST while it holds its sendLock
+	private final StreamBuffer sendBuffer;
+	private final ArrayList<RBTPPacket> lastSent = new ArrayList<>();
+	private final TimingWheel.Timer retransmitTimer;
+	private long retransmitTimeout;
+	private long lastAckTime;
+	private long nextOffset;
+	private int remoteReceiveWindowSize;
+	private int inFlight; // payload bytes in lastSent
+	private volatile int bufferedCount;
+	private volatile int sendLimit = Integer.MAX_VALUE; // the sendBuffer's capacity while the memory budget stops it from growing
+	private volatile boolean closeRequested;
+	private boolean finSent;
+	private volatile boolean finAcked;
+	
+	// Receive side: filled by the IST and drained by readers, all under the recvBuffer lock
+	private final StreamBuffer recvBuffer;
+	private final HashMap<Long, Integer> outOfOrder = new HashMap<>(); // stream offset -> length of data not yet in order
+	private int outOfOrderCount;
+	private long recvOffset; // the stream offset of the first byte in recvBuffer
+	private volatile int available; // in-order bytes at the start of recvBuffer
+	private volatile long finOffset = -1;
+	private int advertisedWindow;
+	private boolean windowUpdate; // the remote needs our current window even if there is nothing to ACK
+	private final ArrayList<Integer> pendingAcks = new ArrayList<>(); // IST only
+	
+	RBTPStream(RBTPConnection connection, int id, int bufferSize) {
+		this.connection = connection;
+		this.id = id;
+		
+		sendBuffer = new StreamBuffer(bufferSize);
+		recvBuffer = new StreamBuffer(bufferSize);
+		remoteReceiveWindowSize = bufferSize; // both ends use the same size until the first ACK says otherwise
+		advertisedWindow = bufferSize;
+		
+		retransmitTimer = TimingWheel.getInstance().newTimer(connection::wakeupOutput);
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	public RBTPConnection getConnection() {
+		return connection;
+	}
+	
+	/**
+	 * Reads as much in-order data of this stream as it can.
+	 * During blocking mode, it will return once at least one byte can be read.
+	 *
+	 * @param data  reads data in the remaining space
+	 * @param block to block or not to block
+	 * @return the number of bytes read, or -1 if the remote end closed this stream or the connection and all its data
+	 * was read
+	 * @throws IOException if the connection is closing
+	 */
+	public int read(ByteBuffer data, boolean block) throws IOException {
+		if(block && data.hasRemaining()) {
+			connection.awaitStream(true, () -> available > 0 || isFinished());
+		}
+		
+		boolean sendWindowUpdate = false;
+		int readCount;
+		
+		synchronized(recvBuffer) {
+			if(available == 0 || !data.hasRemaining()) {
+				if(available == 0 && isFinished()) {
+					return -1;
+				}
+				
+				if(connection.isClosing()) {
+					throw new IOException("Socket is closing or closed.");
+				}
+				
+				return 0;
+			}
+			
+			ByteBuffer buffer = recvBuffer.buffer();
+			buffer.clear().limit(available);
+			
+			readCount = Math.min(buffer.remaining(), data.remaining());
+			buffer.limit(readCount);
+			data.put(buffer);
+			
+			buffer.limit(buffer.capacity());
+			buffer.compact();
+			
+			available -= readCount;
+			recvOffset += readCount;
+			
+			// Reopens the window right away once the remote may have stopped sending because of it
+			int halfCapacity = recvBuffer.maxCapacity() / 2;
+			if(advertisedWindow < halfCapacity && receiveWindow() >= halfCapacity) {
+				windowUpdate = true;
+				sendWindowUpdate = true;
+			}
+		}
+		
+		if(sendWindowUpdate) {
+			connection.requestStreamAck();
+		}
+		
+		return readCount;
+	}
+	
+	private boolean isFinished() {
+		return (finOffset != -1 && finOffset == recvOffset + available) || connection.isFinReceived();
+	}
+	
+	/**
+	 * Writes as much as fits in this stream's send buffer.
+	 * During blocking mode, it will not return until all the data has been written.
+	 *
+	 * @param data  writes data from the remaining space
+	 * @param block to block or not to block
+	 * @return the number of bytes written
+	 * @throws IOException if this stream or the connection is closing
+	 */
+	public int write(ByteBuffer data, boolean block) throws IOException {
+		int written = 0;
+		
+		while(true) {
+			if(closeRequested || connection.isClosing()) {
+				throw new IOException("Stream is closed or closing.");
+			}
+			
+			int writeCount;
+			synchronized(sendBuffer) {
+				boolean grown = sendBuffer.ensureCapacity((int)Math.min(sendBuffer.maxCapacity(), (long)sendBuffer.buffer().position() + data.remaining()));
+				sendLimit = grown ? Integer.MAX_VALUE : sendBuffer.capacity();
+				
+				ByteBuffer buffer = sendBuffer.buffer();
+				writeCount = Math.min(buffer.remaining(), data.remaining());
+				
+				int limit = data.limit();
+				data.limit(data.position() + writeCount);
+				buffer.put(data);
+				data.limit(limit);
+				
+				bufferedCount = buffer.position();
+			}
+			
+			if(writeCount > 0) {
+				written += writeCount;
+				connection.wakeupOutput();
+			}
+			
+			if(!block || !data.hasRemaining()) {
+				return written;
+			}
+			
+			connection.awaitStream(false, () -> bufferedCount < Math.min(sendBuffer.maxCapacity(), sendLimit));
+		}
+	}
+	
+	/**
+	 * Closes the sending side of this stream: the FIN is sent once all written data has been sent. The remote end can
+	 * still send data until it closes its own side.
+	 */
+	public void close() {
+		closeRequested = true;
+		connection.wakeupOutput();
+	}
+	
+	/**
+	 * @return true once our FIN was ACK-ed and all of the remote's data was read
+	 */
+	public boolean isClosed() {
+		synchronized(recvBuffer) {
+			return finAcked && available == 0 && isFinished();
+		}
+	}
+	
+	/**
+	 * Called by the OST: all written data, and the FIN if one was sent, has been ACK-ed.
+	 */
+	boolean isFlushed() {
+		return bufferedCount == 0 && lastSent.isEmpty();
+	}
+	
+	/**
+	 * Called by the OST: handles the retransmission timer and sends as much data as the remote window allows.
+	 */
+	void processEvents() {
+		if(retransmitTimer.checkExpired()) {
+			if(System.currentTimeMillis() - lastAckTime >= connection.getConnectionTimeout()) {
+				if(PRINT_DEBUG) {
+					System.out.println("STREAM " + id + ": Consecutive timeout count limit reached. Closing...");
+				}
+				
+				connection.abort();
+				return;
+			}
+			
+			if(lastSent.isEmpty()) {
+				// The remote window is closed: ask for it again in case its window update was lost
+				RBTPPacket probe = newPacket();
+				connection.sendStreamPacket(probe);
+				probe.destroy();
+			} else {
+				for(RBTPPacket packet : lastSent) {
+					packet.retransmitted = true;
+					connection.sendStreamPacket(packet);
+				}
+			}
+			
+			retransmitTimeout = Math.min(retransmitTimeout * 2, connection.getMaxRetransmissionTimeout());
+			retransmitTimer.schedule(retransmitTimeout);
+		}
+		
+		boolean spaceFreed = false;
+		
+		synchronized(sendBuffer) {
+			ByteBuffer buffer = sendBuffer.buffer();
+			
+			if(buffer.position() > 0 && remoteReceiveWindowSize > 0) {
+				if(lastSent.isEmpty()) {
+					lastAckTime = System.currentTimeMillis();
+				}
+				
+				int prevPosition = buffer.position();
+				buffer.flip();
+				
+				int remaining = Math.min(buffer.remaining(), remoteReceiveWindowSize);
+				remoteReceiveWindowSize -= remaining;
+				
+				while(remaining > 0) {
+					int payloadSize = Math.min(remaining, MAX_PAYLOAD_SIZE);
+					buffer.limit(buffer.position() + payloadSize);
+					
+					ByteBuffer payload = BufferPool.getBuffer(payloadSize);
+					payload.put(buffer);
+					payload.flip();
+					
+					RBTPPacket packet = newPacket();
+					packet.payload(payload);
+					send(packet);
+					
+					nextOffset += payloadSize;
+					inFlight += payloadSize;
+					remaining -= payloadSize;
+				}
+				
+				buffer.limit(prevPosition);
+				buffer.compact();
+				
+				bufferedCount = buffer.position();
+				spaceFreed = true;
+			} else if(buffer.position() == 0 && closeRequested && !finSent) {
+				if(lastSent.isEmpty()) {
+					lastAckTime = System.currentTimeMillis();
+				}
+				
+				RBTPPacket finPacket = newPacket();
+				finPacket.fin(true);
+				send(finPacket);
+				finSent = true;
+			}
+		}
+		
+		if(spaceFreed) {
+			connection.signalStreams(false);
+		}
+		
+		// Also runs while the remote window is closed, as the persist timer that sends window probes
+		if(!retransmitTimer.isScheduled() && (!lastSent.isEmpty() || (bufferedCount > 0 && remoteReceiveWindowSize <= 0))) {
+			retransmitTimeout = connection.getRetransmissionTimeout();
+			retransmitTimer.schedule(retransmitTimeout);
+		}
+	}
+	
+	private RBTPPacket newPacket() {
+		RBTPPacket packet = new RBTPPacket();
+		connection.setupPacket(packet, 0);
+		packet.stm(true);
+		packet.sequenceNumber((int)nextOffset);
+		
+		ByteBuffer metadata = BufferPool.getBuffer(4);
+		metadata.putInt(id);
+		metadata.flip();
+		packet.metadata(metadata);
+		
+		return packet;
+	}
+	
+	private void send(RBTPPacket packet) {
+		packet.sendTime = System.nanoTime();
+		connection.sendStreamPacket(packet);
+		lastSent.add(packet);
+	}
+	
+	/**
+	 * Called by the OST: removes the ACK-ed packets and updates the remote receive window.
+	 */
+	void processAck(RBTPPacket packet) {
+		boolean progress = false;
+		
+		for(int i = 4; i < packet.metadata().capacity(); i += 4) {
+			int ack = packet.metadata().getInt(i);
+			
+			for(int j = 0; j < lastSent.size(); j++) {
+				if((int)lastSent.get(j).sequenceNumber() == ack) {
+					RBTPPacket removedPacket = lastSent.remove(j);
+					
+					// Karn's algorithm: only measure the RTT of packets that were sent once
+					if(!removedPacket.retransmitted) {
+						connection.addRTTSample((System.nanoTime() - removedPacket.sendTime) / 1000);
+					}
+					
+					if(removedPacket.fin()) {
+						finAcked = true;
+					} else {
+						inFlight -= removedPacket.payload().capacity();
+					}
+					
+					removedPacket.destroy();
+					progress = true;
+					break;
+				}
+			}
+		}
+		
+		// The advertised window does not count the data still on its way to the remote
+		remoteReceiveWindowSize = (packet.receiveWindow() << packet.scale()) - inFlight;
+		
+		lastAckTime = System.currentTimeMillis();
+		
+		if(lastSent.isEmpty()) {
+			if(remoteReceiveWindowSize > 0) {
+				retransmitTimer.cancel();
+			}
+		} else if(progress) {
+			retransmitTimeout = connection.getRetransmissionTimeout();
+			retransmitTimer.schedule(retransmitTimeout);
+		}
+	}
+	
+	/**
+	 * Called by the IST: places the data in the receive buffer and queues its ACK. Data that does not fit in the
+	 * window is dropped without an ACK, so that it is retransmitted later.
+	 *
+	 * @return true if new data became readable or the end of the stream was reached
+	 */
+	boolean receive(RBTPPacket packet) {
+		int length = packet.payload() == null ? 0 : packet.payload().capacity();
+		
+		synchronized(recvBuffer) {
+			if(length == 0 && !packet.fin()) {
+				windowUpdate = true; // window probe
+				return false;
+			}
+			
+			// 32-bit offsets wrap around, so the distance from the start of the buffer is taken as a signed int
+			int relativeLoc = (int)packet.sequenceNumber() - (int)recvOffset;
+			
+			if(relativeLoc < 0) {
+				pendingAcks.add((int)packet.sequenceNumber()); // already read, the previous ACK was lost
+				return false;
+			}
+			
+			if(!recvBuffer.ensureCapacity(relativeLoc + length)) {
+				if(PRINT_DEBUG) {
+					System.out.println("STREAM " + id + ": Dropped packet outside the window. seq: " + packet.sequenceNumber());
+				}
+				
+				windowUpdate = true;
+				return false;
+			}
+			
+			pendingAcks.add((int)packet.sequenceNumber());
+			
+			long offset = recvOffset + relativeLoc;
+			
+			if(packet.fin()) {
+				finOffset = offset;
+				return finOffset == recvOffset + available;
+			}
+			
+			if(relativeLoc < available || outOfOrder.containsKey(offset)) {
+				return false; // duplicate
+			}
+			
+			ByteBuffer buffer = recvBuffer.buffer().duplicate();
+			buffer.clear().position(relativeLoc);
+			packet.payload().clear();
+			buffer.put(packet.payload());
+			
+			outOfOrder.put(offset, length);
+			outOfOrderCount += length;
+			
+			int prevAvailable = available;
+			Integer next;
+			while((next = outOfOrder.remove(recvOffset + available)) != null) {
+				available += next;
+				outOfOrderCount -= next;
+			}
+			
+			return available > prevAvailable;
+		}
+	}
+	
+	private int receiveWindow() {
+		return recvBuffer.maxCapacity() - available - outOfOrderCount;
+	}
+	
+	/**
+	 * Called by the IST: sends the ACKs for everything received since the last call, and the window update if one is
+	 * needed.
+	 */
+	void sendAcks() {
+		int window;
+		synchronized(recvBuffer) {
+			if(pendingAcks.isEmpty() && !windowUpdate) {
+				return;
+			}
+			
+			window = receiveWindow();
+			advertisedWindow = window;
+			windowUpdate = false;
+		}
+		
+		int maxAcks = RBTPConnection.MAX_PACKET_SIZE / 4 - 1;
+		int start = 0;
+		do {
+			int count = Math.min(maxAcks, pendingAcks.size() - start);
+			
+			ByteBuffer metadata = BufferPool.getBuffer(4 + count * 4);
+			metadata.putInt(id);
+			for(int i = start; i < start + count; i++) {
+				metadata.putInt(pendingAcks.get(i));
+			}
+			metadata.flip();
+			
+			RBTPPacket ackPacket = new RBTPPacket();
+			connection.setupPacket(ackPacket, window);
+			ackPacket.stm(true);
+			ackPacket.ack(true);
+			ackPacket.metadata(metadata);
+			connection.sendStreamPacket(ackPacket);
+			ackPacket.destroy();
+			
+			start += count;
+		} while(start < pendingAcks.size());
+		
+		pendingAcks.clear();
+	}
+	
+	/**
+	 * Called when the connection closes: releases the unACK-ed packets.
+	 */
+	void shutdown() {
+		retransmitTimer.cancel();
+		
+		synchronized(sendBuffer) {
+			sendBuffer.release();
+		}
+		
+		synchronized(recvBuffer) {
+			recvBuffer.release();
+		}
+		
+		for(RBTPPacket packet : lastSent) {
+			packet.destroy();
+		}
+		lastSent.clear();
+	}
+}
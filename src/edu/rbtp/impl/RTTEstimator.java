@@ -0,0 +1,62 @@
+package edu.rbtp.impl;
+
+/**
+ * Keeps a smoothed round-trip time estimate and its variance, using the same smoothing as TCP (RFC 6298).
+ * All values are in microseconds.
+ *
+ * @author Roi Atalla
+ */
+class RTTEstimator {
+	private long smoothedRTT = -1;
+	private long rttVariance = -1;
+	
+	public synchronized boolean hasSample() {
+		return smoothedRTT != -1;
+	}
+	
+	/**
+	 * Starts from an earlier estimate, as if its samples had been added. Does nothing once there are samples.
+	 *
+	 * @param smoothedRTT the smoothed round-trip time in microseconds
+	 * @param rttVariance the round-trip time variance in microseconds
+	 */
+	public synchronized void seed(long smoothedRTT, long rttVariance) {
+		if(this.smoothedRTT == -1 && smoothedRTT >= 0 && rttVariance >= 0) {
+			this.smoothedRTT = smoothedRTT;
+			this.rttVariance = rttVariance;
+		}
+	}
+	
+	/**
+	 * Adds a new measured sample. Samples from retransmitted packets should never be added (Karn's algorithm).
+	 *
+	 * @param rtt the measured round-trip time in microseconds
+	 */
+	public synchronized void addSample(long rtt) {
+		if(rtt < 0) {
+			return;
+		}
+		
+		if(smoothedRTT == -1) {
+			smoothedRTT = rtt;
+			rttVariance = rtt / 2;
+		} else {
+			rttVariance = (3 * rttVariance + Math.abs(smoothedRTT - rtt)) / 4;
+			smoothedRTT = (7 * smoothedRTT + rtt) / 8;
+		}
+	}
+	
+	/**
+	 * @return the smoothed round-trip time in microseconds, or -1 if no sample has been added
+	 */
+	public synchronized long getSmoothedRTT() {
+		return smoothedRTT;
+	}
+	
+	/**
+	 * @return the round-trip time variance in microseconds, or -1 if no sample has been added
+	 */
+	public synchronized long getRTTVariance() {
+		return rttVariance;
+	}
+}
@@ -0,0 +1,152 @@
+package edu.rbtp.impl;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import edu.rbtp.RBTPSocketAddress;
+import edu.rbtp.tools.BufferPool;
+
+/**
+ * Issues and redeems a server's resumption tickets. A client gets a ticket in the ACK that ends its handshake, and can
+ * present it in the metadata of its next SYN to that server to skip the challenge.
+ *
+ * A ticket holds its expiry time and the client's IP address, encrypted and authenticated with AES-GCM under a key
+ * only the server knows, so clients can neither read nor forge them. Each ticket can only be redeemed once: redeemed
+ * tickets are remembered until they expire.
+ *
+ * Not thread-safe, each server uses its own instance from its packet thread.
+ *
+ * @author Roi Atalla
+ */
+final class ResumptionTickets {
+	private static final int NONCE_SIZE = 12;
+	private static final int TAG_SIZE = 16;
+	private static final int PLAINTEXT_SIZE = 8 + 16; // expiry time, IP address
+	static final int TICKET_SIZE = NONCE_SIZE + PLAINTEXT_SIZE + TAG_SIZE;
+	
+	private final SecretKey key;
+	private final Cipher cipher;
+	private final SecureRandom random = new SecureRandom();
+	
+	private final byte[] nonce = new byte[NONCE_SIZE];
+	private final byte[] plaintext = new byte[PLAINTEXT_SIZE];
+	private final byte[] ticket = new byte[TICKET_SIZE];
+	
+	// Redeemed tickets, by the start of their nonce, with their expiry time
+	private final HashMap<Long, Long> redeemed = new HashMap<>();
+	private long nextPurgeTime;
+	
+	ResumptionTickets() {
+		try {
+			KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+			keyGenerator.init(128, random);
+			key = keyGenerator.generateKey();
+			cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		}
+		catch(GeneralSecurityException exc) {
+			throw new RuntimeException(exc);
+		}
+	}
+	
+	/**
+	 * @param client   the client's address
+	 * @param lifetime how long the ticket can be redeemed for, in milliseconds
+	 * @return the ticket, to be used as the metadata of the ACK
+	 */
+	ByteBuffer issue(RBTPSocketAddress client, long lifetime) {
+		random.nextBytes(nonce);
+		
+		ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+		buffer.putLong(System.currentTimeMillis() + lifetime);
+		putAddress(buffer, client);
+		
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+			cipher.doFinal(plaintext, 0, PLAINTEXT_SIZE, ticket, NONCE_SIZE);
+		}
+		catch(GeneralSecurityException exc) {
+			throw new RuntimeException(exc);
+		}
+		
+		System.arraycopy(nonce, 0, ticket, 0, NONCE_SIZE);
+		
+		ByteBuffer metadata = BufferPool.getBuffer(TICKET_SIZE);
+		metadata.put(ticket);
+		metadata.flip();
+		return metadata;
+	}
+	
+	/**
+	 * Checks the ticket in the metadata of the SYN and, if it is valid, uses it up.
+	 *
+	 * @param synPacket the client's SYN
+	 * @return true if the ticket was issued by us to this client, has not expired and was never redeemed before
+	 */
+	boolean redeem(RBTPPacket synPacket) {
+		ByteBuffer metadata = synPacket.metadata();
+		if(metadata == null || metadata.capacity() != TICKET_SIZE) {
+			return false;
+		}
+		
+		for(int i = 0; i < TICKET_SIZE; i++) {
+			ticket[i] = metadata.get(i);
+		}
+		
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, ticket, 0, NONCE_SIZE));
+			cipher.doFinal(ticket, NONCE_SIZE, PLAINTEXT_SIZE + TAG_SIZE, plaintext, 0);
+		}
+		catch(AEADBadTagException exc) {
+			return false; // forged or issued with a previous key
+		}
+		catch(GeneralSecurityException exc) {
+			throw new RuntimeException(exc);
+		}
+		
+		ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+		long expiryTime = buffer.getLong();
+		
+		long now = System.currentTimeMillis();
+		if(now >= expiryTime) {
+			return false;
+		}
+		
+		ByteBuffer address = ByteBuffer.allocate(16);
+		putAddress(address, synPacket.address);
+		address.flip();
+		if(!address.equals(buffer)) {
+			return false;
+		}
+		
+		purgeExpired(now);
+		
+		long nonceKey = ByteBuffer.wrap(ticket, 0, 8).getLong();
+		return redeemed.putIfAbsent(nonceKey, expiryTime) == null;
+	}
+	
+	private void purgeExpired(long now) {
+		if(now < nextPurgeTime) {
+			return;
+		}
+		
+		redeemed.values().removeIf(expiryTime -> now >= expiryTime);
+		nextPurgeTime = now + 1000;
+	}
+	
+	private static void putAddress(ByteBuffer buffer, RBTPSocketAddress address) {
+		// Only the IP address: the client's UDP and RBTP ports can change between connections
+		byte[] ip = ((InetSocketAddress)address.getAddress()).getAddress().getAddress();
+		for(int i = 0; i < 16; i++) {
+			buffer.put(i < ip.length ? ip[i] : 0);
+		}
+	}
+}
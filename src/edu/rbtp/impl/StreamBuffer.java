@@ -0,0 +1,144 @@
+package edu.rbtp.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A direct ByteBuffer that starts small, grows in chunks up to a maximum capacity, and shrinks back once it has
+ * been empty for a while. Since the backing ByteBuffer is replaced when growing or shrinking, all accesses must
+ * synchronize on the StreamBuffer itself and must not hold on to the ByteBuffer. Its capacity is counted in the
+ * MemoryBudget until it is released.
+ *
+ * @author Roi Atalla
+ */
+class StreamBuffer {
+	public static final int CHUNK_SIZE = 64 * 1024;
+	
+	private ByteBuffer buffer;
+	private int maxCapacity;
+	private long lastUsedTime;
+	private boolean released;
+	
+	StreamBuffer(int maxCapacity) {
+		this.maxCapacity = maxCapacity;
+		this.buffer = ByteBuffer.allocateDirect(Math.min(CHUNK_SIZE, maxCapacity));
+		this.lastUsedTime = System.currentTimeMillis();
+		
+		MemoryBudget.reserve(buffer.capacity(), true);
+	}
+	
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+	
+	public int capacity() {
+		return buffer.capacity();
+	}
+	
+	public int maxCapacity() {
+		return maxCapacity;
+	}
+	
+	public void setMaxCapacity(int maxCapacity) {
+		this.maxCapacity = maxCapacity;
+	}
+	
+	/**
+	 * @return true if the buffer is larger than the size it shrinks back to
+	 */
+	public boolean isShrinkable() {
+		return buffer.capacity() > Math.min(CHUNK_SIZE, maxCapacity);
+	}
+	
+	/**
+	 * Marks the buffer as in use, which delays shrinking.
+	 */
+	public void touch() {
+		lastUsedTime = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Grows the buffer, in multiples of CHUNK_SIZE, so that it can hold at least the specified number of bytes.
+	 * The entire contents, position and limit are kept. Can never grow past the maximum capacity, nor past the
+	 * MemoryBudget.
+	 *
+	 * @param capacity the required capacity
+	 * @return true if the buffer can hold the specified number of bytes
+	 */
+	public boolean ensureCapacity(int capacity) {
+		return ensureCapacity(capacity, false);
+	}
+	
+	/**
+	 * Same as ensureCapacity(int), but can be told to grow past the MemoryBudget, for data that can't wait.
+	 *
+	 * @param capacity the required capacity
+	 * @param required true to grow even if the MemoryBudget is used up
+	 * @return true if the buffer can hold the specified number of bytes
+	 */
+	public boolean ensureCapacity(int capacity, boolean required) {
+		touch();
+		
+		if(capacity <= buffer.capacity()) {
+			return true;
+		}
+		
+		if(capacity > maxCapacity) {
+			return false;
+		}
+		
+		int newCapacity = Math.min(maxCapacity, (capacity + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE);
+		if(!released && !MemoryBudget.reserve(newCapacity - buffer.capacity(), required)) {
+			return false;
+		}
+		
+		ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
+		
+		int position = buffer.position();
+		boolean fullLimit = buffer.limit() == buffer.capacity();
+		int limit = buffer.limit();
+		
+		buffer.clear();
+		newBuffer.put(buffer);
+		newBuffer.limit(fullLimit ? newCapacity : limit).position(position);
+		
+		buffer = newBuffer;
+		return true;
+	}
+	
+	/**
+	 * Shrinks the buffer back to a single chunk if it has not been used for the specified amount of time and no more
+	 * than the specified number of bytes, at the start of the buffer, are in use.
+	 *
+	 * @param used     the number of bytes at the start of the buffer that are in use
+	 * @param idleTime the time in milliseconds the buffer must have been unused
+	 * @return true if the buffer was shrunk
+	 */
+	public boolean shrinkIfIdle(int used, long idleTime) {
+		int newCapacity = Math.min(CHUNK_SIZE, maxCapacity);
+		if(!isShrinkable() || used > newCapacity || System.currentTimeMillis() - lastUsedTime < idleTime) {
+			return false;
+		}
+		
+		ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
+		buffer.clear().limit(used);
+		newBuffer.put(buffer);
+		
+		if(!released) {
+			MemoryBudget.release(buffer.capacity() - newCapacity);
+		}
+		
+		buffer = newBuffer;
+		return true;
+	}
+	
+	/**
+	 * Stops counting this buffer in the MemoryBudget, once its connection is closed. What is left in it can still
+	 * be read.
+	 */
+	public void release() {
+		if(!released) {
+			released = true;
+			MemoryBudget.release(buffer.capacity());
+		}
+	}
+}
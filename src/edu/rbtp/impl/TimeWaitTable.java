@@ -0,0 +1,173 @@
+package edu.rbtp.impl;
+
+import static edu.rbtp.tools.BufferPool.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
+
+import edu.rbtp.RBTPSocketAddress;
+
+/**
+ * Holds the connections in TIMED_WAIT once their threads and buffers are gone. A closed connection only has to answer
+ * its remote's retransmitted FIN (or ACK-CHA, for a rejected client) with its last packet until the remote is surely
+ * done, so an entry keeps just the local port, the remote address, that last packet and an expiry time.
+ *
+ * A retransmission extends its entry's expiry, and a new SYN from the same remote replaces the entry with a new
+ * connection. Any other packet for an entry belongs to the closed connection and is dropped. Entries are kept in
+ * the order of their expiry, which holds as long as all connections use the same timeout, so expired entries are
+ * purged from the front by a single timer.
+ *
+ * @author Roi Atalla
+ */
+final class TimeWaitTable {
+	private static final class Entry {
+		final short port;
+		final RBTPSocketAddress remote;
+		RBTPPacket lastPacket;
+		long timeout;
+		long expiryTime;
+		
+		Entry(short port, RBTPSocketAddress remote) {
+			this.port = port;
+			this.remote = remote;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			if(!(other instanceof Entry)) {
+				return false;
+			}
+			
+			Entry otherEntry = (Entry)other;
+			return port == otherEntry.port && remote.equals(otherEntry.remote);
+		}
+		
+		@Override
+		public int hashCode() {
+			return remote.hashCode() * 31 + port;
+		}
+	}
+	
+	private final Consumer<RBTPPacket> sender;
+	
+	private final LinkedHashMap<Entry, Entry> entries = new LinkedHashMap<>(); // in the order of their expiry
+	private final HashMap<Short, Integer> portCounts = new HashMap<>(); // entries per local port
+	private final TimingWheel.Timer purgeTimer = TimingWheel.getInstance().newTimer(this::purgeExpired);
+	
+	/**
+	 * @param sender sends the packets retransmitted for entries, only ever called from the thread that calls consume
+	 */
+	TimeWaitTable(Consumer<RBTPPacket> sender) {
+		this.sender = sender;
+	}
+	
+	/**
+	 * Adds the connection between the local port and the remote of its last packet, replacing any previous entry for
+	 * them. The table takes ownership of the packet.
+	 *
+	 * @param port       the connection's local port
+	 * @param lastPacket the connection's last packet, sent again for each retransmission received
+	 * @param timeout    how long the entry lasts without retransmissions, in milliseconds
+	 */
+	synchronized void add(short port, RBTPPacket lastPacket, long timeout) {
+		Entry entry = new Entry(port, lastPacket.address);
+		entry.lastPacket = lastPacket;
+		entry.timeout = timeout;
+		entry.expiryTime = System.currentTimeMillis() + timeout;
+		
+		Entry previous = entries.remove(entry);
+		if(previous != null) {
+			previous.lastPacket.destroy();
+		} else {
+			portCounts.merge(port, 1, Integer::sum);
+		}
+		
+		if(entries.isEmpty()) {
+			purgeTimer.schedule(timeout);
+		}
+		entries.put(entry, entry);
+		
+		if(PRINT_DEBUG) {
+			System.out.println("TIME WAIT: Added port " + port + ", remote " + lastPacket.address + ". " + entries.size() + " entries.");
+		}
+	}
+	
+	/**
+	 * Handles the packet if it belongs to a connection in the table.
+	 *
+	 * @param packet a received packet, with its address set
+	 * @return true if the packet was handled and destroyed, false if it should be passed on to the bound socket
+	 */
+	synchronized boolean consume(RBTPPacket packet) {
+		if(entries.isEmpty()) {
+			return false;
+		}
+		
+		Entry entry = entries.get(new Entry((short)packet.destinationPort(), packet.address));
+		if(entry == null) {
+			return false;
+		}
+		
+		if(System.currentTimeMillis() >= entry.expiryTime || (packet.syn() && !packet.cha())) {
+			remove(entry);
+			return false;
+		}
+		
+		if(packet.fin() || (packet.ack() && packet.cha())) {
+			if(PRINT_DEBUG) {
+				System.out.println("TIME WAIT: Re-received FIN or ACK-CHA from " + packet.address + ", resending last packet.");
+			}
+			
+			// Moved to the back, where the entries that expire last are
+			entries.remove(entry);
+			entry.expiryTime = System.currentTimeMillis() + entry.timeout;
+			entries.put(entry, entry);
+			
+			sender.accept(entry.lastPacket);
+		}
+		
+		packet.destroy();
+		return true;
+	}
+	
+	/**
+	 * @param port a local port
+	 * @return true if a connection on the port is in the table
+	 */
+	synchronized boolean isPortInUse(short port) {
+		return portCounts.containsKey(port);
+	}
+	
+	private synchronized void purgeExpired() {
+		long now = System.currentTimeMillis();
+		
+		Iterator<Entry> iterator = entries.keySet().iterator();
+		while(iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if(now < entry.expiryTime) {
+				purgeTimer.schedule(entry.expiryTime - now);
+				break;
+			}
+			
+			iterator.remove();
+			release(entry);
+		}
+		
+		if(PRINT_DEBUG) {
+			System.out.println("TIME WAIT: Purged expired entries. " + entries.size() + " entries.");
+		}
+	}
+	
+	private void remove(Entry entry) {
+		entries.remove(entry);
+		release(entry);
+	}
+	
+	private void release(Entry entry) {
+		portCounts.computeIfPresent(entry.port, (port, count) -> count == 1 ? null : count - 1);
+		entry.lastPacket.destroy();
+		entry.lastPacket = null;
+	}
+}
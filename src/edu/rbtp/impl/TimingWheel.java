@@ -0,0 +1,250 @@
+package edu.rbtp.impl;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel with millisecond resolution, shared by all connections. Timers are hashed into the slot of
+ * their deadline; a single thread sleeps until the next slot that holds a due timer, so nothing wakes up while no
+ * timers are scheduled.
+ *
+ * Timer tasks run on the timer thread and must be short: they are meant to signal the thread that owns the timer.
+ *
+ * @author Roi Atalla
+ */
+class TimingWheel {
+	private static final int WHEEL_SIZE = 512; // must be a power of 2
+	
+	private static TimingWheel instance;
+	
+	public static synchronized TimingWheel getInstance() {
+		if(instance == null) {
+			instance = new TimingWheel();
+		}
+		
+		return instance;
+	}
+	
+	private final Timer[] wheel = new Timer[WHEEL_SIZE]; // heads of each slot's doubly linked list
+	private final long startTime = System.nanoTime();
+	private final Thread thread;
+	
+	private long lastTick;
+	private long nextWakeTick = Long.MAX_VALUE;
+	private int scheduledCount;
+	
+	private TimingWheel() {
+		thread = new Thread(this::run);
+		thread.setName("RBTP Timer Thread");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Creates a new unscheduled timer.
+	 *
+	 * @param task what to run when the timer expires, on the timer thread
+	 * @return the new timer
+	 */
+	public Timer newTimer(Runnable task) {
+		return new Timer(task);
+	}
+	
+	private long currentTick() {
+		return (System.nanoTime() - startTime) / 1000000;
+	}
+	
+	private void add(Timer timer) {
+		int slot = (int)(timer.deadline & (WHEEL_SIZE - 1));
+		timer.next = wheel[slot];
+		timer.prev = null;
+		if(wheel[slot] != null) {
+			wheel[slot].prev = timer;
+		}
+		wheel[slot] = timer;
+		timer.scheduled = true;
+		scheduledCount++;
+	}
+	
+	private void remove(Timer timer) {
+		if(timer.prev != null) {
+			timer.prev.next = timer.next;
+		} else {
+			wheel[(int)(timer.deadline & (WHEEL_SIZE - 1))] = timer.next;
+		}
+		if(timer.next != null) {
+			timer.next.prev = timer.prev;
+		}
+		timer.next = timer.prev = null;
+		timer.scheduled = false;
+		scheduledCount--;
+	}
+	
+	/**
+	 * Removes all timers that are due from the slot of the given tick.
+	 */
+	private void expireSlot(long tick, long now, ArrayList<Timer> expired) {
+		Timer timer = wheel[(int)(tick & (WHEEL_SIZE - 1))];
+		while(timer != null) {
+			Timer next = timer.next;
+			if(timer.deadline <= now) {
+				remove(timer);
+				expired.add(timer);
+			}
+			timer = next;
+		}
+	}
+	
+	/**
+	 * Finds the tick of the earliest slot, within one revolution, that holds a timer that is due by then.
+	 */
+	private long findNextWakeTick() {
+		if(scheduledCount == 0) {
+			return Long.MAX_VALUE;
+		}
+		
+		for(long tick = lastTick + 1; tick <= lastTick + WHEEL_SIZE; tick++) {
+			for(Timer timer = wheel[(int)(tick & (WHEEL_SIZE - 1))]; timer != null; timer = timer.next) {
+				if(timer.deadline <= tick) {
+					return tick;
+				}
+			}
+		}
+		
+		// all timers are more than one revolution away
+		return lastTick + WHEEL_SIZE;
+	}
+	
+	private void run() {
+		ArrayList<Timer> expired = new ArrayList<>();
+		
+		while(true) {
+			long wakeTick;
+			
+			synchronized(this) {
+				long now = currentTick();
+				
+				if(now - lastTick >= WHEEL_SIZE) {
+					for(int slot = 0; slot < WHEEL_SIZE; slot++) {
+						expireSlot(slot, now, expired);
+					}
+				} else {
+					for(long tick = lastTick + 1; tick <= now; tick++) {
+						expireSlot(tick, now, expired);
+					}
+				}
+				
+				lastTick = now;
+				nextWakeTick = findNextWakeTick();
+				
+				for(Timer timer : expired) {
+					timer.expired = true;
+				}
+				
+				wakeTick = nextWakeTick;
+			}
+			
+			for(Timer timer : expired) {
+				try {
+					timer.task.run();
+				}
+				catch(Exception exc) {
+					exc.printStackTrace();
+				}
+			}
+			expired.clear();
+			
+			if(wakeTick == Long.MAX_VALUE) {
+				LockSupport.park(this);
+			} else {
+				long sleepNanos = startTime + wakeTick * 1000000 - System.nanoTime();
+				if(sleepNanos > 0) {
+					LockSupport.parkNanos(this, sleepNanos);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A reusable timer. Scheduling an already scheduled timer moves its deadline.
+	 */
+	public class Timer {
+		private final Runnable task;
+		private Timer prev, next;
+		private long deadline;
+		private boolean scheduled;
+		private volatile boolean expired;
+		
+		private Timer(Runnable task) {
+			this.task = task;
+		}
+		
+		/**
+		 * Schedules this timer to expire after the specified delay, replacing any previous deadline.
+		 *
+		 * @param delay the delay in milliseconds
+		 */
+		public void schedule(long delay) {
+			boolean wakeup;
+			
+			synchronized(TimingWheel.this) {
+				if(scheduled) {
+					remove(this);
+				}
+				
+				expired = false;
+				deadline = currentTick() + Math.max(1, delay);
+				if(deadline <= lastTick) {
+					deadline = lastTick + 1;
+				}
+				add(this);
+				
+				wakeup = deadline < nextWakeTick;
+				if(wakeup) {
+					nextWakeTick = deadline;
+				}
+			}
+			
+			if(wakeup) {
+				LockSupport.unpark(thread);
+			}
+		}
+		
+		/**
+		 * Cancels this timer if it is scheduled.
+		 */
+		public void cancel() {
+			synchronized(TimingWheel.this) {
+				if(scheduled) {
+					remove(this);
+				}
+				
+				expired = false;
+			}
+		}
+		
+		public boolean isScheduled() {
+			synchronized(TimingWheel.this) {
+				return scheduled;
+			}
+		}
+		
+		/**
+		 * Returns whether this timer has expired since it was last scheduled, and clears the expired flag so that
+		 * each expiration is only seen once.
+		 *
+		 * @return true if this timer expired
+		 */
+		public boolean checkExpired() {
+			if(!expired) {
+				return false;
+			}
+			
+			synchronized(TimingWheel.this) {
+				boolean wasExpired = expired;
+				expired = false;
+				return wasExpired;
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package edu.rbtp.impl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lets a single thread sleep until another thread has work for it. A signal sent while the thread is awake is
+ * remembered, so the next await returns immediately and no signal is ever lost.
+ *
+ * @author Roi Atalla
+ */
+class WakeupSignal {
+	private final AtomicBoolean signalled = new AtomicBoolean();
+	private volatile Thread waiter;
+	
+	public void signal() {
+		if(!signalled.getAndSet(true)) {
+			Thread waiter = this.waiter;
+			if(waiter != null) {
+				LockSupport.unpark(waiter);
+			}
+		}
+	}
+	
+	/**
+	 * Blocks the calling thread until signal is called. Only one thread may ever await on a WakeupSignal.
+	 */
+	public void await() {
+		waiter = Thread.currentThread();
+		
+		while(!signalled.getAndSet(false)) {
+			LockSupport.park(this);
+		}
+	}
+}
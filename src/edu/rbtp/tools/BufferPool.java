@@ -15,11 +15,19 @@ public class BufferPool {
 	private static HashSet<ByteBufferWrapper> pool = new HashSet<>();
 	
 	private static int buffersCreated = 0;
+	private static volatile long bytesCreated = 0;
 	
 	public static synchronized int getBuffersCreatedCount() {
 		return buffersCreated;
 	}
 	
+	/**
+	 * @return the total capacity of the buffers created so far, all of which are kept in the pool once released
+	 */
+	public static long getBytesCreatedCount() {
+		return bytesCreated;
+	}
+	
 	public static synchronized ByteBuffer getBuffer(int size) {
 		ByteBufferWrapper best = null;
 		for(ByteBufferWrapper b : pool) {
@@ -31,6 +39,7 @@ public class BufferPool {
 		if(best == null) {
 			best = new ByteBufferWrapper(ByteBuffer.allocateDirect(size));
 			buffersCreated++;
+			bytesCreated += size;
 		}
 		else {
 			pool.remove(best);
@@ -0,0 +1,130 @@
+package edu.rbtp.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, lock-free, array-backed queue that any number of threads may offer to and poll from. Each slot carries
+ * a sequence number that tells producers and consumers whether it is free or filled for their turn around the ring,
+ * so threads only contend on a compare-and-set of the head or tail index. Nothing is allocated per element, and offer
+ * fails instead of blocking when the ring is full.
+ *
+ * @author Roi Atalla
+ */
+public class MPMCRing<E> {
+	private final AtomicReferenceArray<E> buffer;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	
+	/**
+	 * @param capacity the maximum number of elements, rounded up to a power of 2
+	 */
+	public MPMCRing(int capacity) {
+		if(capacity <= 0 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		
+		int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		buffer = new AtomicReferenceArray<>(size);
+		sequences = new AtomicLongArray(size);
+		mask = size - 1;
+		
+		for(int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+	
+	public int capacity() {
+		return buffer.length();
+	}
+	
+	public int size() {
+		return (int)Math.max(0, tail.get() - head.get());
+	}
+	
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+	
+	/**
+	 * Adds the element to the ring.
+	 *
+	 * @param element the element to add
+	 * @return false if the ring is full
+	 */
+	public boolean offer(E element) {
+		if(element == null) {
+			throw new NullPointerException();
+		}
+		
+		long tail;
+		int index;
+		while(true) {
+			tail = this.tail.get();
+			index = (int)tail & mask;
+			long diff = sequences.get(index) - tail;
+			
+			if(diff == 0) {
+				if(this.tail.compareAndSet(tail, tail + 1)) {
+					break;
+				}
+			} else if(diff < 0) {
+				return false; // the slot still holds the element from the previous turn
+			}
+		}
+		
+		buffer.lazySet(index, element);
+		sequences.lazySet(index, tail + 1); // publishes the element
+		return true;
+	}
+	
+	/**
+	 * Removes the oldest element.
+	 *
+	 * @return the oldest element, or null if the ring is empty
+	 */
+	public E poll() {
+		long head;
+		int index;
+		while(true) {
+			head = this.head.get();
+			index = (int)head & mask;
+			long diff = sequences.get(index) - (head + 1);
+			
+			if(diff == 0) {
+				if(this.head.compareAndSet(head, head + 1)) {
+					break;
+				}
+			} else if(diff < 0) {
+				return null; // the slot has not been filled yet
+			}
+		}
+		
+		E element = buffer.get(index);
+		buffer.lazySet(index, null);
+		sequences.lazySet(index, head + buffer.length()); // frees the slot for the next turn
+		return element;
+	}
+	
+	/**
+	 * Removes every element currently in the ring and passes each one to the consumer, in order.
+	 *
+	 * @param consumer receives each element
+	 * @return the number of elements drained
+	 */
+	public int drain(Consumer<? super E> consumer) {
+		int count = 0;
+		E element;
+		while((element = poll()) != null) {
+			count++;
+			consumer.accept(element);
+		}
+		
+		return count;
+	}
+}
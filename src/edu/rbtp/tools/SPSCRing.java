@@ -0,0 +1,122 @@
+package edu.rbtp.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, lock-free, array-backed queue for handing elements from exactly one producer thread to exactly one
+ * consumer thread. Nothing is allocated per element, and offer fails instead of blocking when the ring is full, so
+ * the producer decides how to apply backpressure.
+ *
+ * @author Roi Atalla
+ */
+public class SPSCRing<E> {
+	private final Object[] buffer;
+	private final int mask;
+	
+	private final AtomicLong head = new AtomicLong(); // next index to read, only written by the consumer
+	private final AtomicLong tail = new AtomicLong(); // next index to write, only written by the producer
+	
+	private long cachedHead; // producer's last read of head
+	private long cachedTail; // consumer's last read of tail
+	
+	/**
+	 * @param capacity the maximum number of elements, rounded up to a power of 2
+	 */
+	public SPSCRing(int capacity) {
+		if(capacity <= 0 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		
+		buffer = new Object[capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1];
+		mask = buffer.length - 1;
+	}
+	
+	public int capacity() {
+		return buffer.length;
+	}
+	
+	public int size() {
+		return (int)(tail.get() - head.get());
+	}
+	
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+	
+	/**
+	 * Adds the element to the ring. Must only be called from the producer thread.
+	 *
+	 * @param element the element to add
+	 * @return false if the ring is full
+	 */
+	public boolean offer(E element) {
+		if(element == null) {
+			throw new NullPointerException();
+		}
+		
+		long tail = this.tail.get();
+		if(tail - cachedHead >= buffer.length) {
+			cachedHead = head.get();
+			if(tail - cachedHead >= buffer.length) {
+				return false;
+			}
+		}
+		
+		buffer[(int)tail & mask] = element;
+		this.tail.lazySet(tail + 1); // publishes the element
+		return true;
+	}
+	
+	/**
+	 * Removes the oldest element. Must only be called from the consumer thread.
+	 *
+	 * @return the oldest element, or null if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long head = this.head.get();
+		if(head >= cachedTail) {
+			cachedTail = tail.get();
+			if(head >= cachedTail) {
+				return null;
+			}
+		}
+		
+		int index = (int)head & mask;
+		E element = (E)buffer[index];
+		buffer[index] = null;
+		this.head.lazySet(head + 1); // frees the slot
+		return element;
+	}
+	
+	/**
+	 * Removes every element currently in the ring and passes each one to the consumer, in order. The head index is
+	 * only published once for the whole batch. Must only be called from the consumer thread.
+	 *
+	 * @param consumer receives each element
+	 * @return the number of elements drained
+	 */
+	@SuppressWarnings("unchecked")
+	public int drain(Consumer<? super E> consumer) {
+		long head = this.head.get();
+		long tail = cachedTail = this.tail.get();
+		long start = head;
+		
+		try {
+			while(head < tail) {
+				int index = (int)head & mask;
+				E element = (E)buffer[index];
+				buffer[index] = null;
+				head++;
+				
+				consumer.accept(element);
+			}
+		}
+		finally {
+			this.head.lazySet(head);
+		}
+		
+		return (int)(head - start);
+	}
+}
@@ -0,0 +1,95 @@
+package edu.rbtp.tools;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads used by each connection and server. They can either be regular platform threads or, on Java 21
+ * and later, virtual threads, which lets a process hold tens of thousands of connections.
+ *
+ * Virtual threads are turned on with setVirtualThreads or by starting Java with -Drbtp.virtualThreads=true
+ *
+ * @author Roi Atalla
+ */
+public class Threads {
+	private static final Method ofVirtual, builderName, builderUnstarted;
+	
+	static {
+		Method ofVirtualMethod = null, nameMethod = null, unstartedMethod = null;
+		
+		// Looked up through reflection so that we can still run on Java 8
+		try {
+			ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			nameMethod = builder.getMethod("name", String.class);
+			unstartedMethod = builder.getMethod("unstarted", Runnable.class);
+		}
+		catch(Exception exc) {
+			ofVirtualMethod = null;
+		}
+		
+		ofVirtual = ofVirtualMethod;
+		builderName = nameMethod;
+		builderUnstarted = unstartedMethod;
+	}
+	
+	private static volatile boolean virtualThreads = isVirtualThreadsSupported() && Boolean.getBoolean("rbtp.virtualThreads");
+	
+	private Threads() {}
+	
+	public static boolean isVirtualThreadsSupported() {
+		return ofVirtual != null;
+	}
+	
+	public static boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+	
+	/**
+	 * Sets whether threads created from now on are virtual threads.
+	 *
+	 * @param virtualThreads true to use virtual threads
+	 */
+	public static void setVirtualThreads(boolean virtualThreads) {
+		if(virtualThreads && !isVirtualThreadsSupported()) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+		}
+		
+		Threads.virtualThreads = virtualThreads;
+	}
+	
+	/**
+	 * Creates a new, unstarted thread.
+	 *
+	 * @param name the name of the thread
+	 * @param task what the thread runs
+	 * @return the new thread
+	 */
+	public static Thread newThread(String name, Runnable task) {
+		if(virtualThreads) {
+			try {
+				Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+				return (Thread)builderUnstarted.invoke(builder, task);
+			}
+			catch(Exception exc) {
+				throw new RuntimeException(exc);
+			}
+		}
+		
+		Thread thread = new Thread(task);
+		thread.setName(name);
+		return thread;
+	}
+	
+	/**
+	 * Creates and starts a new thread.
+	 *
+	 * @param name the name of the thread
+	 * @param task what the thread runs
+	 * @return the started thread
+	 */
+	public static Thread startThread(String name, Runnable task) {
+		Thread thread = newThread(name, task);
+		thread.start();
+		return thread;
+	}
+}
@@ -22,6 +22,12 @@ public class SimpleFTP {
 	public static final byte RSP = 0x03;
 	public static final byte FIN = 0x04;
 	
+	/* Size of the [data len] field */
+	public static final int LENGTH_SIZE = 4;
+	
+	/* Largest [data len] accepted, which bounds the size of a PUT */
+	public static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+	
 	
 	/**
 	 * Helper function to build an SimpleFTP message.
@@ -31,11 +37,26 @@ public class SimpleFTP {
 	public static byte[] buildMessage(byte opcode, byte content[]) {
 		int messageLength = 1 + content.length; // in bytes, opcode + content
 		ByteBuffer bbuff = ByteBuffer.allocate(4 + messageLength); // +4 makes room for length
-
+		
 		bbuff.putInt(messageLength);
 		bbuff.put(opcode);
 		bbuff.put(content);
 		
 		return bbuff.array();
 	}
+	
+	/**
+	 * Helper function to build only the [data len][opcode] header of a SimpleFTP message, so that the content can be
+	 * sent from its own buffer with a gathering write.
+	 *
+	 * @return the header, ready to be written
+	 */
+	public static ByteBuffer buildHeader(byte opcode, int contentLength) {
+		ByteBuffer header = ByteBuffer.allocate(4 + 1);
+		header.putInt(1 + contentLength);
+		header.put(opcode);
+		header.flip();
+		
+		return header;
+	}
 }
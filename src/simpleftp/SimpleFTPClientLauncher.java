@@ -1,12 +1,13 @@
 package simpleftp;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
 
 import edu.rbtp.impl.NetworkManager;
@@ -34,6 +35,11 @@ public class SimpleFTPClientLauncher {
 	private static void changeWindowSize(SimpleFTPClient client, String windowSizeStr) {
 		int windowSize;
 		
+		if(windowSizeStr.equalsIgnoreCase("auto")) {
+			client.setWindowAutoTuning();
+			return;
+		}
+		
 		try {
 			windowSize = Integer.parseInt(windowSizeStr);
 			
@@ -43,16 +49,16 @@ public class SimpleFTPClientLauncher {
 			System.out.println("Incorrect parameters, window size must be integer.");
 		}
 	}
-
+	
 	private static void doPut(SimpleFTPClient client, String filename) {
 		byte fileBytes[];
 		Path path = Paths.get(filename);
-
+		
 		// Check that file exists
 		if (Files.exists(path)) {
 			try {
 				fileBytes = Files.readAllBytes(path);
-
+				
 				// If successful:
 				if (client.put(filename, fileBytes)) {
 					System.out.println("File sent to server.");
@@ -71,45 +77,47 @@ public class SimpleFTPClientLauncher {
 			System.out.println("ERROR: File not found");
 		}
 	}
-
+	
 	private static void doGet(SimpleFTPClient client, String filename) {
-		byte opcode;
-		byte response[], content[];
-		FileOutputStream fouts;
-		String localFilename, errorMessage;
+		Path localPath;
+		String errorMessage;
+		boolean created = false;
+		
+		// Ensure we don't overwrite pre-existing files
+		localPath = Paths.get(determineLocalFilename(filename));
 		
 		try {
-			response = client.get(filename);
-			content = new byte[response.length - 1];
-			opcode = response[0];
-			
-			System.arraycopy(response, 1, content, 0, content.length);
+			// Create file, the client writes the received data straight into it
+			try(FileChannel file = FileChannel.open(localPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				created = true;
+				errorMessage = client.get(filename, file);
+			}
 			
 			// Successful GET
-			if(SimpleFTP.RSP == opcode) {
+			if(errorMessage == null) {
 				System.out.println("Successfully received file from server.");
-				
-				// Ensure we don't overwrite pre-existing files
-				localFilename = determineLocalFilename(filename);
-				
-				// Create file
-				fouts = new FileOutputStream(localFilename);
-				
-				fouts.write(content);
-				fouts.close();
-				
-				System.out.println("File saved as " + localFilename);
+				System.out.println("File saved as " + localPath);
 			}
 			// Unsuccessful GET
-			else if(SimpleFTP.ERR == opcode) {
-				System.out.print("Server returned an error message: ");
-				errorMessage = new String(content, "UTF-8");
+			else {
+				Files.delete(localPath);
 				
+				System.out.print("Server returned an error message: ");
 				System.out.println(errorMessage);
 			}
 		}
 		catch(IOException ioex) {
 			System.out.println("IOException encountered while attempting GET, aborting.");
+			
+			// Don't leave a partial file behind
+			if(created) {
+				try {
+					Files.deleteIfExists(localPath);
+				}
+				catch(IOException exc) {
+					System.out.println("Could not delete partial file " + localPath);
+				}
+			}
 		}
 	}
 	
@@ -228,7 +236,7 @@ public class SimpleFTPClientLauncher {
 					if(connected) {
 						// Get filename argument
 						inputArray = input.split(" ");
-
+						
 						if(inputArray.length == 2) {
 							// inputArray[1] is the filename
 							doPut(client, inputArray[1]);
@@ -239,7 +247,7 @@ public class SimpleFTPClientLauncher {
 						System.out.println("ERROR: Client not currently connected.");
 					}
 				}
-
+				
 				/*
 				 * UNSUPPORTED COMMAND
 				 */
@@ -271,5 +279,5 @@ public class SimpleFTPClientLauncher {
 			client.close();
 		}
 	}
-	
+
 }
@@ -18,6 +18,11 @@ public class SimpleFTPServerLauncher {
 	private static void changeWindowSize(SimpleFTPServer server, String windowSizeStr) {
 		int windowSize;
 		
+		if(windowSizeStr.equalsIgnoreCase("auto")) {
+			server.setWindowAutoTuning();
+			return;
+		}
+		
 		try {
 			windowSize = Integer.parseInt(windowSizeStr);
 			
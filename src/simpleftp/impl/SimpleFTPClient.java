@@ -1,9 +1,11 @@
 package simpleftp.impl;
 
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import edu.rbtp.RBTPSocket;
 import edu.rbtp.RBTPSocketAddress;
@@ -26,6 +28,7 @@ public class SimpleFTPClient {
 	 */
 	public SimpleFTPClient(int port, String netEmuIP, int netEmuPort) throws IOException {
 		socket = new RBTPSocket();
+		socket.setReadLowWaterMark(SimpleFTP.LENGTH_SIZE); // don't wake up before a whole length field has arrived
 		socket.connect(new RBTPSocketAddress(new InetSocketAddress(netEmuIP, netEmuPort), 1000));
 	}
 	
@@ -38,6 +41,13 @@ public class SimpleFTPClient {
 		socket.getConnection().setWindowSize(windowSize);
 	}
 	
+	/**
+	 * Requests that RBTP auto-tune the window size.
+	 */
+	public synchronized void setWindowAutoTuning() {
+		socket.getConnection().setWindowAutoTuning(true);
+	}
+	
 	/**
 	 * Sends a file to the SFTP server via PUT.
 	 *
@@ -49,68 +59,84 @@ public class SimpleFTPClient {
 	 */
 	public boolean put(String filename, byte fileBytes[]) throws IOException {
 		byte putRequest[] = SimpleFTP.buildMessage(SimpleFTP.PUT, filename.getBytes("UTF-8"));
-
+		
 		// Request to PUT a file (content is filename)
 		socket.write(ByteBuffer.wrap(putRequest));
-
+		
 		// First 4 bytes denotes length of remainder of message
 		ByteBuffer buffer = ByteBuffer.allocate(4);
-		do {
-			socket.read(buffer);
-		} while (buffer.position() < 4);
+		readFully(buffer);
 		buffer.flip();
-
+		
 		ByteBuffer content = ByteBuffer.allocate(buffer.getInt());
-
+		
 		// Read remainder of message
-		do {
-			socket.read(content);
-		} while (content.hasRemaining());
-
+		readFully(content);
+		
 		// Check response type
 		byte contentBytes[] = content.array();
-
+		
 		if (SimpleFTP.RSP == contentBytes[0]) {
-			// Prepare to send file bytes
-			byte putPacket[] = SimpleFTP.buildMessage(SimpleFTP.PUT, fileBytes);
-
-			// Send final PUT packet
-			socket.write(ByteBuffer.wrap(putPacket));
-
+			// Send final PUT packet, the header and the file bytes in one gathering write without copying them together
+			socket.write(new ByteBuffer[] { SimpleFTP.buildHeader(SimpleFTP.PUT, fileBytes.length), ByteBuffer.wrap(fileBytes) });
+			
 			return true;
 		}
-
+		
 		// Treat any OPCODE besides RSP as a PUT request rejection
 		return false;
 	}
 	
 	/**
-	 * Fetches a file from the SFTP server via GET.
+	 * Fetches a file from the SFTP server via GET, writing it straight from the socket into the destination.
 	 *
-	 * @param filename - the file to GET
-	 * @return the requested file, in bytes.
+	 * @param filename    - the file to GET
+	 * @param destination - where to write the file
+	 * @return null if the file was received, else the error message returned by the server.
 	 * @throws IOException if the connection is lost.
 	 */
-	public byte[] get(String filename) throws IOException {
+	public String get(String filename, FileChannel destination) throws IOException {
 		byte getRequest[] = SimpleFTP.buildMessage(SimpleFTP.GET, filename.getBytes("UTF-8"));
 		
 		socket.write(ByteBuffer.wrap(getRequest));
-
-		// First 4 bytes denotes length of remainder of message
+		
+		// First 4 bytes denotes length of remainder of message, followed by the opcode
 		ByteBuffer buffer = ByteBuffer.allocate(4);
-		do {
-			socket.read(buffer);
-		} while(buffer.position() < 4);
+		readFully(buffer);
 		buffer.flip();
 		
-		ByteBuffer content = ByteBuffer.allocate(buffer.getInt());
-
-		// Read remainder of message
-		do {
-			socket.read(content);
-		} while(content.hasRemaining());
+		int contentLength = buffer.getInt() - 1;
 		
-		return content.array();
+		ByteBuffer opcode = ByteBuffer.allocate(1);
+		readFully(opcode);
+		
+		if(SimpleFTP.RSP != opcode.get(0)) {
+			ByteBuffer content = ByteBuffer.allocate(contentLength);
+			readFully(content);
+			
+			return new String(content.array(), "UTF-8");
+		}
+		
+		// Read remainder of message into the file
+		long received = 0;
+		while(received < contentLength) {
+			long count = socket.transferTo(destination, received, contentLength - received);
+			if(count < 0) {
+				throw new EOFException("Connection closed by the server.");
+			}
+			
+			received += count;
+		}
+		
+		return null;
+	}
+	
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(socket.read(buffer) < 0) {
+				throw new EOFException("Connection closed by the server.");
+			}
+		}
 	}
 	
 	public void close() {
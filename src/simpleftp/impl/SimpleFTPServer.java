@@ -1,16 +1,20 @@
 package simpleftp.impl;
 
+import java.io.EOFException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 
 import edu.rbtp.RBTPServerSocket;
 import edu.rbtp.RBTPSocket;
+import edu.rbtp.tools.Threads;
 import simpleftp.SimpleFTP;
 
 /**
@@ -45,6 +49,15 @@ public class SimpleFTPServer {
 		}
 	}
 	
+	/**
+	 * Requests that RBTP auto-tune the window size.
+	 */
+	public synchronized void setWindowAutoTuning() {
+		for(ClientHandler client : clients) {
+			client.clientSocket.getConnection().setWindowAutoTuning(true);
+		}
+	}
+	
 	/**
 	 * Alerts the server to stop accepting new connections.
 	 * <p>
@@ -70,8 +83,7 @@ public class SimpleFTPServer {
 		while(listen) {
 			RBTPSocket clientSocket = serverSocket.accept();
 			
-			Thread clientThread = new Thread(new ClientHandler(clientSocket));
-			clientThread.start();
+			Threads.startThread("SimpleFTP Client Thread", new ClientHandler(clientSocket));
 		}
 		
 		serverSocket.close();
@@ -85,7 +97,7 @@ public class SimpleFTPServer {
 	private class ClientHandler implements Runnable {
 		boolean isMidPUT = false;
 		String putFilename; // Must keep track of this for 2nd half of PUT
-
+		
 		RBTPSocket clientSocket;
 		
 		/**
@@ -96,20 +108,21 @@ public class SimpleFTPServer {
 		 */
 		public ClientHandler(RBTPSocket clientSocket) throws IOException {
 			this.clientSocket = clientSocket;
+			this.clientSocket.setReadLowWaterMark(SimpleFTP.LENGTH_SIZE); // don't wake up before a whole length field has arrived
 			System.out.println("Accepted client connection");
 		}
-
+		
 		private byte[] handlePut(byte content[]) {
 			byte response[];
 			Path path;
 			String filename, errorMessage, message;
-
+			
 			System.out.println("Handling PUT request...");
-
+			
 			try {
 				filename = new String(content, "UTF-8");
 				path = Paths.get(filename);
-
+				
 				// If the file exists locally, respond with error
 				if (Files.exists(path)) {
 					errorMessage = "File exists on server, overwrite not allowed";
@@ -119,10 +132,10 @@ public class SimpleFTPServer {
 				else {
 					message = "";
 					response = SimpleFTP.buildMessage(SimpleFTP.RSP, message.getBytes("UTF-8"));
-
+					
 					// Keep track of filename for second part of PUT
 					putFilename = filename;
-
+					
 					isMidPUT = true;
 				}
 			}
@@ -131,42 +144,58 @@ public class SimpleFTPServer {
 				errorMessage = "Server does not support UTF-8 encoding";
 				response = SimpleFTP.buildMessage(SimpleFTP.ERR, errorMessage.getBytes());
 			}
-
+			
 			return response;
 		}
-
-		private byte[] handleGet(byte content[]) {
-			byte response[];
+		
+		/**
+		 * Sends the requested file, or an error message if it does not exist. The file is sent straight from a
+		 * memory-mapping of it, so it is never read into memory as a whole.
+		 */
+		private void handleGet(byte content[]) throws IOException {
 			String errorMessage, filename;
 			Path path;
+			byte opcode;
 			
-			try {
-				filename = new String(content, "UTF-8");
+			filename = new String(content, "UTF-8");
+			
+			System.out.println("Received content length: " + content.length + ", filename: " + filename);
+			
+			path = Paths.get(filename);
+			if(Files.exists(path)) {
+				try(FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+					long size = file.size();
+					
+					clientSocket.write(SimpleFTP.buildHeader(SimpleFTP.RSP, (int)size));
+					
+					long sent = 0;
+					while(sent < size) {
+						long count = clientSocket.transferFrom(file, sent, size - sent);
+						if(count == 0) {
+							throw new IOException("File was truncated while sending it.");
+						}
+						
+						sent += count;
+					}
+				}
 				
-				System.out.println("Received content length: " + content.length + ", filename: " + filename);
+				opcode = SimpleFTP.RSP;
+			} else {
+				errorMessage = "File not found";
+				clientSocket.write(ByteBuffer.wrap(SimpleFTP.buildMessage(SimpleFTP.ERR, errorMessage.getBytes("UTF-8"))));
 				
-				path = Paths.get(filename);
-				if(Files.exists(path)) {
-					response = SimpleFTP.buildMessage(SimpleFTP.RSP, Files.readAllBytes(path));
-				} else {
-					errorMessage = "File not found";
-					response = SimpleFTP.buildMessage(SimpleFTP.ERR, errorMessage.getBytes("UTF-8"));
-				}
+				opcode = SimpleFTP.ERR;
 			}
-			catch(UnsupportedEncodingException ueex) {
-				// Never reached
-				errorMessage = "Server does not support UTF-8 encoding";
-				response = SimpleFTP.buildMessage(SimpleFTP.ERR, errorMessage.getBytes());
-			}
-			catch(IOException ioex) {
-				// Never reached due to checking that file exists
-				errorMessage = "IOException encountered while reading file";
-				response = SimpleFTP.buildMessage(SimpleFTP.ERR, errorMessage.getBytes());
-			}
-			
-			System.out.println("Handle get finished, returning response. opcode: " + response[0]);
 			
-			return response;
+			System.out.println("Handle get finished, sent response. opcode: " + opcode);
+		}
+		
+		private void readFully(ByteBuffer buffer) throws IOException {
+			while(buffer.hasRemaining()) {
+				if(clientSocket.read(buffer) < 0) {
+					throw new EOFException("Connection closed by the client.");
+				}
+			}
 		}
 		
 		/**
@@ -174,36 +203,46 @@ public class SimpleFTPServer {
 		 */
 		@Override
 		public void run() {
+			ByteBuffer header = ByteBuffer.allocate(SimpleFTP.LENGTH_SIZE);
 			ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
 			
 			while(listen && !clientSocket.isClosed()) {
 				try {
-					buffer.clear();
-					do {
-						clientSocket.read(buffer);
-					} while(buffer.position() < 4);
-					buffer.flip();
+					header.clear();
+					readFully(header);
+					header.flip();
 					
-					int size = buffer.getInt();
-					buffer.compact();
+					int size = header.getInt();
 					
-					while(size > buffer.position()) {
-						clientSocket.read(buffer);
+					// At least the opcode, and not so large that the server runs out of memory
+					if(size < 1 || size > SimpleFTP.MAX_MESSAGE_SIZE) {
+						String errorMessage = "Invalid message size: " + size;
+						System.out.println(errorMessage);
+						
+						ByteBuffer response = ByteBuffer.wrap(SimpleFTP.buildMessage(SimpleFTP.ERR, errorMessage.getBytes("UTF-8")));
+						while(response.hasRemaining())
+							clientSocket.write(response);
+						
+						// The rest of the stream can't be framed any more
+						break;
 					}
 					
-					buffer.flip();
+					// Only read this message, messages larger than the buffer, such as a PUT of a large file, get a
+					// buffer of their own
+					ByteBuffer message = size <= buffer.capacity() ? buffer : ByteBuffer.allocate(size);
+					message.clear().limit(size);
+					readFully(message);
+					message.flip();
 					
-					byte opcode = buffer.get();
+					byte opcode = message.get();
 					
 					System.out.println("Received opcode: " + opcode);
 					
-					byte[] content = new byte[buffer.remaining()];
-					buffer.get(content);
+					byte[] content = new byte[message.remaining()];
+					message.get(content);
 					
 					if(SimpleFTP.GET == opcode) {
-						ByteBuffer response = ByteBuffer.wrap(handleGet(content));
-						while(response.hasRemaining())
-							clientSocket.write(response);
+						handleGet(content);
 					} else if(SimpleFTP.PUT == opcode) {
 						if(!isMidPUT) {
 							ByteBuffer response = ByteBuffer.wrap(handlePut(content));
@@ -213,13 +252,13 @@ public class SimpleFTPServer {
 						else {
 							// We do not send anything back to client
 							FileOutputStream fouts = new FileOutputStream(putFilename);
-
+							
 							// Write bytes
 							fouts.write(content);
 							fouts.close();
-
+							
 							System.out.println("Received file " + putFilename + " from client.");
-
+							
 							isMidPUT = false;
 						}
 					} else if(SimpleFTP.FIN == opcode) {
@@ -231,6 +270,10 @@ public class SimpleFTPServer {
 				catch(IOException ioex) {
 					break;
 				}
+				catch(RuntimeException exc) {
+					exc.printStackTrace();
+					break;
+				}
 			}
 			
 			// Close socket when done